@@ -1,5 +1,8 @@
 import java.util.Set;
 import java.util.TreeSet;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
@@ -13,15 +16,23 @@ import java.io.Serializable;
  * the server and the client, the password is stored 
  * elsewhere to ensure security.
  *
+ * Clients speaking Java object serialization may predate
+ * the lazily made friend sets, so an account is always
+ * serialized with both sets, empty if it has none.
+ *
  * @version %I%, %G%
  */
 
 public class Account implements Serializable, Comparable<Account> {
-    private int postsAtLastSync;
+    // As first released, so that old clients can still read accounts
+    private static final long serialVersionUID = -856034769577393004L;
+
     private String name;
     private String userId;
-    private Set<Account> friends = new TreeSet<Account>();
-    private Set<Account> ignoredFriends = new TreeSet<Account>();
+    // Made on the first friend, since the Server keeps friendships
+    // in its FriendGraph and its accounts never have any
+    private Set<Account> friends;
+    private Set<Account> ignoredFriends;
 
     /**
      * Constructor.
@@ -63,79 +74,62 @@ public class Account implements Serializable, Comparable<Account> {
         this.userId = userId;
     }
 
-    /**
-     * Get the amount of posts the user of the account was aware of
-     * the last time the Client synchronized with the Server.
-     *
-     * @return the amount of posts the account knew of at the last sync
-     */
-    public int getPostAtLastSync() {
-	return this.postsAtLastSync;
-    }
-    
-    /**
-     * Set the amount of posts the user of the account is aware of.
-     * Should be done when the Client synchronizes with the Server.
-     *
-     * @param posts the amount of posts the account knows of at the current sync
-     */
-    public void setPostAtLastSync(int posts) {
-	this.postsAtLastSync = posts;
-    }
-
     /** Add account to list of friends. */
-    public void addFriend(Account a) {
+    public synchronized void addFriend(Account a) {
+        if (this.friends == null) this.friends = new TreeSet<Account>();
         this.friends.add(a);
     }
 
     /** Remove account from friends list.  */
-    public void removeFriend(Account a) {
-        this.friends.remove(a);
+    public synchronized void removeFriend(Account a) {
+        if (this.friends != null) this.friends.remove(a);
     }
 
     /** Add friend to list of ignored friends, meaning that no posts from that user will appear when displaying posts.  */
-    public void ignoreFriend(Account a) {
-        if (this.isFriendsWith(a)) this.ignoredFriends.add(a);
+    public synchronized void ignoreFriend(Account a) {
+        if (!this.isFriendsWith(a)) return;
+        if (this.ignoredFriends == null) this.ignoredFriends = new TreeSet<Account>();
+        this.ignoredFriends.add(a);
     }
 
     /** Remove friend from list of ignored friends.  */
-    public void unIgnoreFriend(Account a) {
-        if (this.isFriendsWith(a)) this.ignoredFriends.remove(a);
+    public synchronized void unIgnoreFriend(Account a) {
+        if (this.isFriendsWith(a) && this.ignoredFriends != null) this.ignoredFriends.remove(a);
     }
 
     /** Check if account is in list of friends.  */
-    public boolean isFriendsWith(Account a) {
-        return this.friends.contains(a);
+    public synchronized boolean isFriendsWith(Account a) {
+        return this.friends != null && this.friends.contains(a);
     }
 
     /** Check if an account is being ignored. */
-    public boolean isCurrentlyIgnoring(Account a) {
-        return this.ignoredFriends.contains(a);
+    public synchronized boolean isCurrentlyIgnoring(Account a) {
+        return this.ignoredFriends != null && this.ignoredFriends.contains(a);
     }
 
     /** Compare accounts ID to this ID. */
     public int compareTo(Account a) {
-        return a.userId.compareTo(this.userId);
+        return this.userId.compareTo(a.userId);
     }
 
     /** Check if the user currently have any users in friends list. */
-    public boolean hasFriends() {
-        return this.friends.size() > 0;
+    public synchronized boolean hasFriends() {
+        return this.friends != null && this.friends.size() > 0;
     }
 
     /** Check if any friends are being ignored. */
-    public boolean hasIgnoredFriends() {
-        return this.ignoredFriends.size() > 0;
+    public synchronized boolean hasIgnoredFriends() {
+        return this.ignoredFriends != null && this.ignoredFriends.size() > 0;
     }
 
     /** Get all current friends in array. */
-    public Account[] getFriends() {
-        return (Account[]) this.friends.toArray(new Account[0]);
+    public synchronized Account[] getFriends() {
+        return this.friends == null ? new Account[0] : (Account[]) this.friends.toArray(new Account[0]);
     }
 
     /** Get all currently ignored friends in array. */
-    public Account[] getIgnoredFriends() {
-        return (Account[]) this.ignoredFriends.toArray(new Account[0]);
+    public synchronized Account[] getIgnoredFriends() {
+        return this.ignoredFriends == null ? new Account[0] : (Account[]) this.ignoredFriends.toArray(new Account[0]);
     }
 
     /** Check if an account is equivalent to this (user id is the same). */
@@ -146,4 +140,24 @@ public class Account implements Serializable, Comparable<Account> {
             return false;
         }
     }
+
+    /** Hash on the user id, consistent with {@link #equals}. */
+    public int hashCode() {
+        return this.userId.hashCode();
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("name", this.name);
+        fields.put("userId", this.userId);
+        fields.put("friends", this.friends != null ? this.friends : new TreeSet<Account>());
+        fields.put("ignoredFriends", this.ignoredFriends != null ? this.ignoredFriends : new TreeSet<Account>());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (this.friends != null && this.friends.isEmpty()) this.friends = null;
+        if (this.ignoredFriends != null && this.ignoredFriends.isEmpty()) this.ignoredFriends = null;
+    }
 }
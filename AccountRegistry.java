@@ -0,0 +1,240 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The accounts and logins known by the Server, indexed
+ * by user id. An account and its login are kept together
+ * in a single entry so that a lookup of either is a
+ * single hash probe, regardless of how many users
+ * are registered.
+ *
+ * Lookups never block. Listing every account is served
+ * from a sorted snapshot that is rebuilt only after
+ * the registry has changed.
+ *
+ * Adding, renaming and removing accounts is recorded in
+ * a {@link DirectoryLog}, so that clients can be sent only
+ * the accounts that changed since their last sync.
+ *
+ * @version %I%, %G%
+ */
+public class AccountRegistry {
+    private ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private AtomicLong version = new AtomicLong(0);
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.<Account>emptySet());
+    private DirectoryLog directory = new DirectoryLog();
+
+    /**
+     * An immutable pairing of an account and its login.
+     * Either half may be missing while an account is
+     * being registered or updated.
+     */
+    private static class Entry {
+        private final Account account;
+        private final Login login;
+
+        private Entry(Account account, Login login) {
+            this.account = account;
+            this.login   = login;
+        }
+
+        private Entry withAccount(Account a) {
+            return (a == null && this.login == null) ? null : new Entry(a, this.login);
+        }
+
+        private Entry withLogin(Login l) {
+            return (l == null && this.account == null) ? null : new Entry(this.account, l);
+        }
+    }
+
+    /** A sorted copy of the accounts as of a registry version. */
+    private static class Snapshot {
+        private final long version;
+        private final Set<Account> accounts;
+
+        private Snapshot(long version, Set<Account> accounts) {
+            this.version  = version;
+            this.accounts = accounts;
+        }
+    }
+
+    /** The accounts that changed between two versions of the directory. */
+    public static class Delta {
+        private final long version;
+        private final boolean full;
+        private final List<Account> changed;
+        private final Set<String> removed;
+
+        private Delta(long version, boolean full, List<Account> changed, Set<String> removed) {
+            this.version = version;
+            this.full    = full;
+            this.changed = changed;
+            this.removed = removed;
+        }
+
+        /** Get the directory version the delta brings a client up to. */
+        public long getVersion() {
+            return this.version;
+        }
+
+        /** Check if the delta is the whole directory rather than changes. */
+        public boolean isFull() {
+            return this.full;
+        }
+
+        /** Get the accounts that were added or renamed. */
+        public List<Account> getChanged() {
+            return this.changed;
+        }
+
+        /** Get the user ids of the accounts that were removed. */
+        public Set<String> getRemoved() {
+            return this.removed;
+        }
+    }
+
+    /**
+     * Get the account registered for a user id.
+     *
+     * @param userId the unique id of an account
+     * @return the account, or <code>null</code> if there is none
+     */
+    public Account getAccount(String userId) {
+        Entry e = this.entries.get(userId);
+        return e == null ? null : e.account;
+    }
+
+    /**
+     * Get the login registered for a user id.
+     *
+     * @param userId the unique id of an account
+     * @return the login, or <code>null</code> if there is none
+     */
+    public Login getLogin(String userId) {
+        Entry e = this.entries.get(userId);
+        return e == null ? null : e.login;
+    }
+
+    /** Register an account, replacing any account with the same id. */
+    public void addAccount(final Account a) {
+        this.entries.compute(a.getUserId(), (id, e) -> e == null ? new Entry(a, null) : e.withAccount(a));
+        this.version.incrementAndGet();
+        this.directory.record(a.getUserId());
+    }
+
+    /** Register a login, replacing any login for the same account. */
+    public void addLogin(final Login l) {
+        this.entries.compute(l.getAccount().getUserId(), (id, e) -> e == null ? new Entry(null, l) : e.withLogin(l));
+        this.version.incrementAndGet();
+    }
+
+    /** Remove an account. Its login, if any, is kept. */
+    public void removeAccount(Account a) {
+        this.entries.computeIfPresent(a.getUserId(), (id, e) -> e.withAccount(null));
+        this.version.incrementAndGet();
+        this.directory.record(a.getUserId());
+    }
+
+    /** Remove a login. Its account, if any, is kept. */
+    public void removeLogin(Login l) {
+        this.entries.computeIfPresent(l.getAccount().getUserId(), (id, e) -> e.withLogin(null));
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * Record that a registered account has changed its name.
+     *
+     * @param a the renamed account
+     */
+    public void renamed(Account a) {
+        this.directory.record(a.getUserId());
+    }
+
+    /** Get the current version of the directory. */
+    public long getDirectoryVersion() {
+        return this.directory.getVersion();
+    }
+
+    /**
+     * Get the accounts that have changed since a version of the
+     * directory. If the changes since then are no longer known, every
+     * account is returned instead.
+     *
+     * @param since the directory version of the client's last sync
+     * @return the changes
+     */
+    public Delta getChangesSince(long since) {
+        Set<String> changedIds = new HashSet<String>();
+        long version = this.directory.changedSince(since, changedIds);
+
+        if (version < 0) {
+            version = this.directory.getVersion();
+            return new Delta(version, true, new ArrayList<Account>(this.getSnapshot()), Collections.<String>emptySet());
+        }
+
+        List<Account> changed = new ArrayList<Account>();
+        Set<String> removed = new HashSet<String>();
+        for (String userId : changedIds) {
+            Account a = this.getAccount(userId);
+            if (a != null) changed.add(a);
+            else removed.add(userId);
+        }
+
+        return new Delta(version, false, changed, removed);
+    }
+
+    /** Get all registered accounts. */
+    public Collection<Account> getAccounts() {
+        List<Account> result = new ArrayList<Account>(this.entries.size());
+
+        for (Entry e : this.entries.values()) {
+            if (e.account != null) result.add(e.account);
+        }
+
+        return result;
+    }
+
+    /** Get all registered logins. */
+    public Collection<Login> getLogins() {
+        List<Login> result = new ArrayList<Login>(this.entries.size());
+
+        for (Entry e : this.entries.values()) {
+            if (e.login != null) result.add(e.login);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get a sorted, unmodifiable snapshot of all registered
+     * accounts. The snapshot is shared between callers until
+     * the registry next changes.
+     */
+    public Set<Account> getSnapshot() {
+        Snapshot current = this.snapshot;
+        long version = this.version.get();
+
+        if (current.version == version) return current.accounts;
+
+        // The version is read before the copy is made, so a change
+        // racing with the copy only makes the next call rebuild it.
+        Set<Account> accounts = Collections.unmodifiableSet(new TreeSet<Account>(this.getAccounts()));
+        Snapshot rebuilt = new Snapshot(version, accounts);
+        this.snapshot = rebuilt;
+
+        return rebuilt.accounts;
+    }
+
+    /** Get the number of registered accounts. */
+    public int size() {
+        return this.entries.size();
+    }
+}
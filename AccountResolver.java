@@ -0,0 +1,17 @@
+/**
+ * Finds the account for a user id, so that messages on
+ * the wire can refer to accounts by user id only.
+ *
+ * @version %I%, %G%
+ * @see WireCodec
+ */
+public interface AccountResolver {
+    /**
+     * Get the account for a user id.
+     *
+     * @param userId the unique id of an account
+     * @return the account; never <code>null</code>, an account with
+     * only the user id set is returned for an unknown id
+     */
+    Account resolve(String userId);
+}
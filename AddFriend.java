@@ -1,5 +1,3 @@
-import java.io.Serializable;
-
 /**
  * A message used by a Client to notify the 
  * Client Proxy that the logged in user has  
@@ -10,7 +8,9 @@ import java.io.Serializable;
  * @version %I%, %G%
  */
 
-public class AddFriend implements Serializable {
+public class AddFriend extends Message {
+    private static final long serialVersionUID = 5053787754187203497L;
+
     private Account friendToBeAdded;
 
     /**
@@ -0,0 +1,57 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An envelope for several messages sent at once, such as a
+ * number of AddFriends and posts followed by a SyncRequest.
+ * The Client Proxy handles the messages in order, and sends
+ * the replies to them together once the whole batch has
+ * been handled.
+ *
+ * A batch may not contain another batch.
+ *
+ * @version %I%, %G%
+ */
+public class Batch extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private List<Message> messages = new ArrayList<Message>();
+
+    /** Constructor for an empty batch. */
+    public Batch() {
+    }
+
+    /**
+     * Constructor
+     *
+     * @param messages the messages, in the order they are to be handled
+     */
+    public Batch(List<? extends Message> messages) {
+        for (Message m : messages) this.add(m);
+    }
+
+    /**
+     * Add a message to the end of the batch.
+     *
+     * @param m the message
+     * @return this batch
+     * @throws IllegalArgumentException if the message is a batch
+     */
+    public Batch add(Message m) {
+        if (m instanceof Batch) throw new IllegalArgumentException("A batch may not contain a batch");
+        this.messages.add(m);
+
+        return this;
+    }
+
+    /** Get the messages in the batch, in order. */
+    public List<Message> getMessages() {
+        return Collections.unmodifiableList(this.messages);
+    }
+
+    /** Get the number of messages in the batch. */
+    public int size() {
+        return this.messages.size();
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A message channel speaking the compact binary protocol.
+ * Every message is sent as a frame: its length in bytes,
+ * followed by the message as encoded by {@link WireCodec}.
+ *
+ * A client asks for the binary protocol by sending
+ * {@link #MAGIC} before its first message, and the server
+ * answers with the same value. A client using Java object
+ * serialization starts with the serialization stream header
+ * instead, so the server can tell the two apart from the
+ * first four bytes of a connection.
+ *
+ * @version %I%, %G%
+ */
+public class BinaryChannel implements MessageChannel {
+    /** The first four bytes of a binary connection, "TWB1". */
+    public static final int MAGIC = 0x54574231;
+    /** The largest frame accepted, in bytes. */
+    public static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    /** The largest frame accepted from a client that has not logged in, in bytes. */
+    public static final int MAX_HANDSHAKE_FRAME_BYTES = 64 * 1024;
+
+    private DataInputStream in;
+    private DataOutputStream out;
+    private AccountResolver accounts;
+    private boolean awaitingMagic;
+    private int maxFrameBytes = MAX_FRAME_BYTES;
+    private ByteArrayOutputStream frame = new ByteArrayOutputStream(256);
+    private DataOutputStream frameOut = new DataOutputStream(this.frame);
+    // The most the frame buffer has grown to, since it never shrinks
+    private int largestFrame = 0;
+
+    private BinaryChannel(InputStream in, OutputStream out, AccountResolver accounts, boolean awaitingMagic) {
+        this.in  = new DataInputStream(in);
+        this.out = new DataOutputStream(out);
+        this.accounts = accounts;
+        this.awaitingMagic = awaitingMagic;
+    }
+
+    /**
+     * Open the server end of a new connection, in whichever
+     * protocol the client speaks. A binary channel only accepts
+     * frames of up to {@link #MAX_HANDSHAKE_FRAME_BYTES} until
+     * {@link #setMaxFrameBytes} is called once the client has
+     * logged in.
+     *
+     * @param socket the connection to the client
+     * @param accounts resolves the user ids in received messages
+     * @return a binary channel if the client asked for one, else an object channel
+     */
+    public static MessageChannel accept(Socket socket, AccountResolver accounts) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+        in.mark(4);
+        int magic = new DataInputStream(in).readInt();
+        if (magic == MAGIC) {
+            BinaryChannel channel = new BinaryChannel(in, out, accounts, false);
+            channel.maxFrameBytes = MAX_HANDSHAKE_FRAME_BYTES;
+            channel.out.writeInt(MAGIC);
+            return channel;
+        }
+
+        in.reset();
+        return new ObjectChannel(in, out);
+    }
+
+    /**
+     * Open the client end of a new binary connection. The request
+     * for the binary protocol is sent with the first message, and
+     * the server's answer is checked with the first reply.
+     *
+     * @param socket the connection to the server
+     * @param accounts resolves the user ids in received messages
+     */
+    public static BinaryChannel connect(Socket socket, AccountResolver accounts) throws IOException {
+        BinaryChannel channel = new BinaryChannel(new BufferedInputStream(socket.getInputStream()),
+                                                  new BufferedOutputStream(socket.getOutputStream()),
+                                                  accounts, true);
+        channel.out.writeInt(MAGIC);
+
+        return channel;
+    }
+
+    public void send(Object message) throws IOException {
+        this.frame.reset();
+        WireCodec.encode(message, this.frameOut);
+        this.largestFrame = Math.max(this.largestFrame, this.frame.size());
+
+        this.out.writeInt(this.frame.size());
+        this.frame.writeTo(this.out);
+    }
+
+    public void flush() throws IOException {
+        this.out.flush();
+    }
+
+    public long getRetainedBytes() {
+        return this.largestFrame;
+    }
+
+    /**
+     * Set the largest frame accepted from now on.
+     *
+     * @param maxFrameBytes the largest frame, at most {@link #MAX_FRAME_BYTES}
+     */
+    public void setMaxFrameBytes(int maxFrameBytes) {
+        this.maxFrameBytes = Math.min(maxFrameBytes, MAX_FRAME_BYTES);
+    }
+
+    public Object receive() throws IOException {
+        if (this.awaitingMagic) {
+            if (this.in.readInt() != MAGIC) throw new IOException("Server does not speak the binary protocol");
+            this.awaitingMagic = false;
+        }
+
+        int length = this.in.readInt();
+        if (length < 1 || length > this.maxFrameBytes) throw new IOException("Bad frame length " + length);
+
+        byte[] bytes = new byte[length];
+        this.in.readFully(bytes);
+
+        return WireCodec.decode(new DataInputStream(new ByteArrayInputStream(bytes)), this.accounts);
+    }
+
+    public void close() throws IOException {
+        this.out.close();
+        this.in.close();
+    }
+}
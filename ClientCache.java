@@ -0,0 +1,138 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The state a Client keeps between runs: the directory of
+ * accounts, the feed, and the directory version they were
+ * synced to. A client that starts from its cache can show
+ * the feed at once, and only asks the server for what has
+ * changed since.
+ *
+ * There is one cache file per server and user, in the
+ * directory named by the <code>twitterish.cacheDir</code>
+ * system property, by default <code>.twitterish</code> in
+ * the user's home directory. Like a server snapshot, the
+ * file is written under a temporary name, renamed into
+ * place, and ends with a CRC32 of its contents; a cache
+ * that cannot be read is ignored. The file can only be read
+ * by the user who wrote it.
+ *
+ * @version %I%, %G%
+ * @see ServerSnapshot
+ */
+public class ClientCache {
+    private static final int MAGIC = 0x54574343; // "TWCC"
+    private static final int FORMAT = 1;
+
+    private File file;
+
+    /**
+     * Create the cache of a user on a server.
+     *
+     * @param server the host name or address of the server
+     * @param port the port of the server
+     * @param userId the unique id of the user
+     */
+    public ClientCache(String server, int port, String userId) {
+        File directory = new File(System.getProperty("twitterish.cacheDir",
+                                                     new File(System.getProperty("user.home"), ".twitterish").getPath()));
+        // Keep the name to characters any file system takes
+        String name = (server + "_" + port + "_" + userId).replaceAll("[^A-Za-z0-9._@-]", "_");
+        this.file = new File(directory, name + ".cache");
+    }
+
+    /** Get the file the cache is kept in. */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Load the cache into an empty directory and feed.
+     *
+     * @param directory the directory to add the cached accounts to
+     * @param feed the feed to add the cached posts to
+     * @return the directory version the cache was synced to, or 0 if there is no cache
+     * @throws IOException if the cache could not be read or is corrupt
+     */
+    public long load(Directory directory, Feed feed) throws IOException {
+        if (!this.file.exists()) return 0;
+
+        ByteBuffer in = FileCodec.readChecked(this.file, 16, "cache");
+        if (in.getInt() != MAGIC || in.getInt() != FORMAT) throw new IOException("Not a cache " + this.file);
+        long directoryVersion = in.getLong();
+
+        for (int i = in.getInt(); i > 0; --i) {
+            directory.put(new Account(FileCodec.readString(in), FileCodec.readString(in)));
+        }
+
+        for (int i = in.getInt(); i > 0; --i) {
+            long id = in.getLong();
+            String posterId = FileCodec.readString(in);
+            Account poster = directory.get(posterId);
+            feed.addPost(new Post(id, poster != null ? poster : new Account(posterId), FileCodec.readString(in)));
+        }
+
+        return directoryVersion;
+    }
+
+    /**
+     * Replace the cache with the current state of a client.
+     *
+     * @param directoryVersion the directory version the accounts are synced to
+     * @param accounts the known accounts
+     * @param posts the posts of the feed, oldest first
+     */
+    public void save(long directoryVersion, Collection<Account> accounts, List<Post> posts) throws IOException {
+        File directory = this.file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Could not create " + directory);
+
+        Path temporary = new File(directory, this.file.getName() + ".tmp").toPath();
+        // Left over if an earlier save failed; it may have been made with other permissions
+        Files.deleteIfExists(temporary);
+        try {
+            // Posts are private to the user; keep them from other users of the machine
+            Files.createFile(temporary, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException uoe) {
+            // Not a POSIX file system, where only the directory can keep them private
+            Files.createFile(temporary);
+        }
+
+        try (OutputStream fileOut = Files.newOutputStream(temporary)) {
+            FileCodec.CheckedOutput out = new FileCodec.CheckedOutput(fileOut);
+
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(directoryVersion);
+
+            out.writeInt(accounts.size());
+            for (Account a : accounts) {
+                FileCodec.writeString(out, a.getUserId());
+                FileCodec.writeString(out, a.getName());
+            }
+
+            out.writeInt(posts.size());
+            for (Post p : posts) {
+                out.writeLong(p.getGlobalPostId());
+                FileCodec.writeString(out, p.getPoster().getUserId());
+                FileCodec.writeString(out, p.getContent());
+            }
+
+            out.finish();
+        }
+
+        Files.move(temporary, this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Delete the cache. */
+    public void delete() {
+        this.file.delete();
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The accounts known by a Client, as the Server's directory
+ * has been synced. Accounts are kept by user id in a hash
+ * table, so applying a sync costs time in proportion to the
+ * accounts that changed, not to the whole directory.
+ *
+ * Every word of each account's name is also kept in a sorted
+ * index, so that accounts can be looked up by the first few
+ * letters of any word of their name, ignoring case.
+ *
+ * A directory is not thread-safe; the Client guards its own.
+ *
+ * @version %I%, %G%
+ */
+public class Directory {
+    private Map<String, Account> accounts = new HashMap<String, Account>();
+    // Each word of each name, lower case, then a NUL and the user
+    // id, so that the keys are unique and sort by word
+    private TreeMap<String, Account> words = new TreeMap<String, Account>();
+
+    /**
+     * Get a known account.
+     *
+     * @param userId the unique id of the account
+     * @return the account, or <code>null</code> if it is not known
+     */
+    public Account get(String userId) {
+        return this.accounts.get(userId);
+    }
+
+    /**
+     * Add an account, or update the name of the known account
+     * with the same user id. The known account is kept, so that
+     * references to it see the new name.
+     *
+     * @param a the account as it was synced
+     * @return the account kept in the directory
+     */
+    public Account put(Account a) {
+        Account known = this.accounts.get(a.getUserId());
+
+        if (known == null) {
+            known = a;
+            this.accounts.put(a.getUserId(), a);
+        } else {
+            if (equal(known.getName(), a.getName())) return known;
+            this.unindex(known);
+            known.setName(a.getName());
+        }
+        this.index(known);
+
+        return known;
+    }
+
+    /**
+     * Remove an account.
+     *
+     * @param userId the unique id of the account
+     */
+    public void remove(String userId) {
+        Account known = this.accounts.remove(userId);
+        if (known != null) this.unindex(known);
+    }
+
+    /**
+     * Remove every account not among the given ones, as when
+     * the whole directory has been synced.
+     *
+     * @param keep the accounts to keep
+     */
+    public void retainAll(Collection<Account> keep) {
+        Set<String> userIds = new HashSet<String>();
+        for (Account a : keep) userIds.add(a.getUserId());
+
+        for (Iterator<Account> i = this.accounts.values().iterator(); i.hasNext(); ) {
+            Account a = i.next();
+            if (!userIds.contains(a.getUserId())) {
+                i.remove();
+                this.unindex(a);
+            }
+        }
+    }
+
+    /**
+     * Find the accounts with a word in their name that starts
+     * with a prefix, ignoring case, in order of that word.
+     *
+     * @param prefix the first letters of a word of the name
+     * @param limit the most accounts wanted
+     * @return the accounts found
+     */
+    public List<Account> search(String prefix, int limit) {
+        String from = prefix.trim().toLowerCase(Locale.ROOT);
+        Set<Account> found = new LinkedHashSet<Account>();
+
+        for (Account a : this.words.subMap(from, true, from + Character.MAX_VALUE, false).values()) {
+            if (found.size() >= limit) break;
+            found.add(a);
+        }
+
+        return new ArrayList<Account>(found);
+    }
+
+    /** Get every known account, in no particular order. */
+    public Collection<Account> getAll() {
+        return Collections.unmodifiableCollection(this.accounts.values());
+    }
+
+    /** Get the number of known accounts. */
+    public int size() {
+        return this.accounts.size();
+    }
+
+    /** Check if no accounts are known. */
+    public boolean isEmpty() {
+        return this.accounts.isEmpty();
+    }
+
+    private void index(Account a) {
+        for (String key : keys(a)) this.words.put(key, a);
+    }
+
+    private void unindex(Account a) {
+        for (String key : keys(a)) this.words.remove(key);
+    }
+
+    private static List<String> keys(Account a) {
+        List<String> keys = new ArrayList<String>();
+        String name = a.getName() == null ? a.getUserId() : a.getName();
+
+        for (String word : name.toLowerCase(Locale.ROOT).split("\\s+")) {
+            if (!word.isEmpty()) keys.add(word + '\0' + a.getUserId());
+        }
+
+        return keys;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A version number for the directory of accounts on the
+ * Server, and a bounded log of which accounts changed at
+ * each version. An account changes when it is added,
+ * renamed or removed. A client that remembers the version
+ * of its last sync can be sent only the accounts that
+ * changed since, as long as the log still reaches back
+ * that far.
+ *
+ * @version %I%, %G%
+ */
+public class DirectoryLog {
+    /** Default number of changes remembered. */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private String[] userIds;
+    private int head = 0;
+    private int size = 0;
+    // Versions start from the clock rather than 0, so that a version
+    // remembered by a client from before a restart is never mistaken
+    // for one of this run.
+    private long version = System.currentTimeMillis() * 1000;
+    private ReentrantLock lock = new ReentrantLock();
+
+    /** Create a log with the default capacity. */
+    public DirectoryLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a log.
+     *
+     * @param capacity the number of changes remembered
+     */
+    public DirectoryLog(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.userIds = new String[capacity];
+    }
+
+    /**
+     * Record that an account has changed, forgetting the oldest
+     * change if the log is full.
+     *
+     * @param userId the unique id of the changed account
+     * @return the new version of the directory
+     */
+    public long record(String userId) {
+        this.lock.lock();
+        try {
+            int index = (this.head + this.size) % this.userIds.length;
+
+            if (this.size == this.userIds.length) {
+                this.head = (this.head + 1) % this.userIds.length;
+            } else {
+                ++this.size;
+            }
+            this.userIds[index] = userId;
+
+            return ++this.version;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Get the current version of the directory. */
+    public long getVersion() {
+        this.lock.lock();
+        try {
+            return this.version;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the accounts that have changed since a version.
+     *
+     * @param since a version of the directory
+     * @param into the set the user ids of the changed accounts are added to
+     * @return the current version, or -1 if the log no longer reaches
+     * back to <code>since</code>, in which case nothing is added
+     */
+    public long changedSince(long since, Set<String> into) {
+        this.lock.lock();
+        try {
+            if (since > this.version) return -1;
+            if (since < this.version - this.size) return -1;
+
+            // Versions in the log are consecutive, so the first change
+            // after since is found by its distance from the oldest one.
+            long oldest = this.version - this.size + 1;
+            for (long v = Math.max(since + 1, oldest); v <= this.version; ++v) {
+                into.add(this.userIds[(this.head + (int) (v - oldest)) % this.userIds.length]);
+            }
+
+            return this.version;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
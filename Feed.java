@@ -1,17 +1,162 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
-import java.util.LinkedList;
 
-/** Keeps tracks of posts.  */
+/**
+ * Keeps track of the latest posts. The feed holds a bounded
+ * number of posts in a ring; once it is full, each new post
+ * replaces the oldest. The capacity defaults to the
+ * <code>twitterish.feedCapacity</code> system property.
+ *
+ * The ring is kept in order of global post id, which is the
+ * order posts were made in, whatever order they arrive in.
+ * A post already in the feed is found by binary search and
+ * not added again, so a post delivered twice, by a sync
+ * overlapping a push or after a reconnect, shows up once.
+ * A post newer than any in the feed, the usual case, is
+ * added in constant time.
+ *
+ * Posts are rendered newest first, a page at a time, straight
+ * into an {@link Appendable}, so rendering costs time in
+ * proportion to the posts rendered rather than the size of
+ * the feed.
+ */
 public class Feed {
-    private List<Post> posts = new LinkedList<Post>();
+    /** Default number of posts kept. */
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("twitterish.feedCapacity", 1000);
+
+    private Post[] posts;
+    // Where the next post goes; the newest post is just before it
+    private int next = 0;
+    private int size = 0;
+
+    /** Create a feed with the default capacity. */
+    public Feed() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a feed.
+     *
+     * @param capacity the most posts kept at once
+     */
+    public Feed(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.posts = new Post[capacity];
+    }
 
     /**
-     * Pushes posts to beginning of list of posts.
+     * Add a post in order of its id, dropping the oldest post if
+     * the feed is full. A post that is already in the feed, or is
+     * older than every post in a full feed, is not added.
      *
      * @param post Post to add.
+     * @return <code>true</code> if the post was added
+     */
+    public boolean addPost(Post post) {
+        long id = post.getGlobalPostId();
+        int at = this.size;
+
+        if (this.size > 0 && id <= this.get(this.size - 1).getGlobalPostId()) {
+            at = this.find(id);
+            if (at >= 0) return false;
+            at = -at - 1;
+        }
+
+        if (this.size == this.posts.length) {
+            if (at == 0) return false;
+            // Drop the oldest
+            --this.size;
+            --at;
+        }
+        for (int i = this.size; i > at; --i) this.set(i, this.get(i - 1));
+        this.set(at, post);
+        this.next = (this.next + 1) % this.posts.length;
+        ++this.size;
+
+        return true;
+    }
+
+    /**
+     * Add a batch of posts, in whatever order they arrived. They
+     * are merged in order of id, oldest first, so that a batch of
+     * new posts is only appended to the feed.
+     *
+     * @param posts Posts to add.
+     * @return How many of the posts were added.
      */
-    public void addPost(Post post) {
-        posts.add(0, post);
+    public int addPosts(Collection<Post> posts) {
+        List<Post> sorted = new ArrayList<Post>(posts);
+        sorted.sort(Comparator.comparingLong(Post::getGlobalPostId));
+
+        int added = 0;
+        for (Post p : sorted) {
+            if (this.addPost(p)) ++added;
+        }
+
+        return added;
+    }
+
+    /** Check if a post with a given id is in the feed. */
+    public boolean contains(long globalPostId) {
+        return this.find(globalPostId) >= 0;
+    }
+
+    /**
+     * Find a post by id, as with {@link java.util.Arrays#binarySearch}.
+     *
+     * @return the position of the post, oldest being 0, or
+     * <code>-(insertion point) - 1</code> if it is not in the feed
+     */
+    private int find(long id) {
+        int low = 0;
+        int high = this.size - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleId = this.get(middle).getGlobalPostId();
+
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -(low + 1);
+    }
+
+    /** Get the post at a position, oldest being 0. */
+    private Post get(int i) {
+        return this.posts[(this.next - this.size + i + this.posts.length) % this.posts.length];
+    }
+
+    /** Set the post at a position, oldest being 0. */
+    private void set(int i, Post p) {
+        this.posts[(this.next - this.size + i + this.posts.length) % this.posts.length] = p;
+    }
+
+    /** Get the posts in the feed, oldest first. */
+    public List<Post> getPosts() {
+        List<Post> result = new ArrayList<Post>(this.size);
+        for (int i = 0; i < this.size; ++i) result.add(this.get(i));
+
+        return result;
+    }
+
+    /** Get the number of posts in the feed. */
+    public int size() {
+        return this.size;
+    }
+
+    /** Get the most posts the feed keeps. */
+    public int getCapacity() {
+        return this.posts.length;
     }
 
     /**
@@ -22,7 +167,7 @@ public class Feed {
      * @return Rendered post in string form.
      */
     public String renderAll(Account loggedInUser) {
-        return this.render(posts.size(), loggedInUser);
+        return this.renderLatest(this.size, loggedInUser);
     }
 
     /**
@@ -35,20 +180,49 @@ public class Feed {
      * @return Rendered post in string form.
      */
     public String renderLatest(int n, Account loggedInUser) {
-        return this.render(n, loggedInUser);
+        StringBuilder result = new StringBuilder();
+        try {
+            this.render(result, 0, n, loggedInUser);
+        } catch (IOException ioe) {
+            // A StringBuilder does not throw
+            throw new UncheckedIOException(ioe);
+        }
+
+        return result.toString();
     }
 
-    private String render(int n, Account loggedInUser) {
-        String result = "";
+    /**
+     * Render a page of posts, newest first. Posts from friends
+     * that are being ignored are skipped, and do not count
+     * towards the page.
+     *
+     * @param out Where to render the posts.
+     * @param page Which page to render, the newest posts being page 0.
+     * @param pageSize How many posts make a page.
+     * @param loggedInUser User that is currently logged into client.
+     * @return How many posts were rendered; fewer than a page if there are no more.
+     */
+    public int renderPage(Appendable out, int page, int pageSize, Account loggedInUser) throws IOException {
+        return this.render(out, page * pageSize, pageSize, loggedInUser);
+    }
+
+    private int render(Appendable out, int skip, int n, Account loggedInUser) throws IOException {
+        int rendered = 0;
+
+        for (int i = 1; i <= this.size && rendered < n; ++i) {
+            Post p = this.posts[(this.next - i + this.posts.length) % this.posts.length];
 
-        for (Post p : this.posts) {
 	    // Don't render posts from ignored friends
-            if (!loggedInUser.isCurrentlyIgnoring(p.getPoster())) {
-		result = result + p.render();
-	    }
-            if (--n < 0) break;
+            if (loggedInUser.isCurrentlyIgnoring(p.getPoster())) continue;
+            if (skip > 0) {
+                --skip;
+                continue;
+            }
+
+            p.render(out);
+            ++rendered;
         }
 
-        return result;
+        return rendered;
     }
 }
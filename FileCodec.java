@@ -0,0 +1,136 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The framing shared by the files the Server and the Client
+ * keep: a string is its length in UTF-8, or -1 for null,
+ * followed by its UTF-8 bytes, and a file that must not be
+ * used half-written ends with a CRC32 of everything before
+ * it. The binary protocol frames its strings the same way.
+ *
+ * @version %I%, %G%
+ * @see WireCodec
+ * @see Journal
+ * @see ServerSnapshot
+ * @see ClientCache
+ */
+final class FileCodec {
+    private FileCodec() {
+    }
+
+    /** Write a string of any length as its UTF-8 length and bytes, <code>null</code> as -1. */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Read a string written by {@link #writeString}.
+     *
+     * @throws IOException if its length is more than the bytes left
+     */
+    static String readString(ByteBuffer in) throws IOException {
+        int length = checkLength(in.getInt(), in.remaining());
+        if (length < 0) return null;
+
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a string written by {@link #writeString} from a stream.
+     *
+     * @param in the stream
+     * @param maxLength the greatest length of the string in bytes
+     * @throws IOException if the stream ends first, or the length is
+     * more than the greatest
+     */
+    static String readString(DataInputStream in, int maxLength) throws IOException {
+        int length = checkLength(in.readInt(), maxLength);
+        if (length < 0) return null;
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int checkLength(int length, int maxLength) throws IOException {
+        if (length > maxLength) throw new IOException("Bad string length " + length);
+
+        return length;
+    }
+
+    /**
+     * A buffered stream over a file being written, which keeps a
+     * CRC32 of what is written and ends the file with it.
+     */
+    static class CheckedOutput extends DataOutputStream {
+        private final OutputStream file;
+        private final CRC32 crc;
+
+        /**
+         * @param file the stream of the file; it is left open
+         */
+        CheckedOutput(OutputStream file) {
+            this(file, new CRC32());
+        }
+
+        private CheckedOutput(OutputStream file, CRC32 crc) {
+            super(new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16));
+            this.file = file;
+            this.crc = crc;
+        }
+
+        /** Flush what was written, and end the file with its CRC32. */
+        void finish() throws IOException {
+            this.flush();
+            this.file.write(ByteBuffer.allocate(8).putLong(this.crc.getValue()).array());
+        }
+    }
+
+    /**
+     * Map a file written through a {@link CheckedOutput}, and check
+     * the CRC32 at its end.
+     *
+     * @param file the file
+     * @param minimum the least length of its contents, without the CRC
+     * @param kind what the file is, for the messages of failures
+     * @return the contents of the file, without the CRC
+     * @throws IOException if the file could not be read, is shorter
+     * than the minimum or does not match its CRC
+     */
+    static ByteBuffer readChecked(File file, int minimum, String kind) throws IOException {
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (in.limit() < minimum + 8) throw new IOException("Truncated " + kind + " " + file);
+        long expected = in.getLong(in.limit() - 8);
+        in.limit(in.limit() - 8);
+        CRC32 crc = new CRC32();
+        crc.update(in.duplicate());
+        if (crc.getValue() != expected) throw new IOException("Corrupt " + kind + " " + file);
+
+        return in;
+    }
+}
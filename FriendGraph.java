@@ -0,0 +1,340 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The friendships between the accounts on the Server. Each
+ * user id is interned to a small int the first time it is
+ * seen, and the friends of an account are kept as a sorted
+ * array of those ints, so that an account costs a few dozen
+ * bytes plus four per friend, and checking a friendship is
+ * a binary search.
+ *
+ * A friendship is always mutual, and making or ending one
+ * changes both accounts at once: no reader ever sees one
+ * side without the other. The arrays are never changed once
+ * stored, only replaced, and readers take no lock unless a
+ * change happened while they read.
+ *
+ * An account may also ignore some of its friends, which are
+ * kept the same way. Ending a friendship ends any ignoring
+ * between the two.
+ *
+ * @version %I%, %G%
+ */
+public class FriendGraph {
+    private static final int[] NONE = new int[0];
+
+    private Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    // Indexed by interned id; guarded by lock
+    private String[] userIds = new String[256];
+    private int[][] friends = new int[256][];
+    private int[][] ignored = new int[256][];
+    private int size = 0;
+    private long friendships = 0;
+    private StampedLock lock = new StampedLock();
+
+    /**
+     * Get the interned id of a user id, interning it if it is new.
+     *
+     * @param userId the unique id of an account
+     * @return the id
+     */
+    public int intern(String userId) {
+        Integer id = this.ids.get(userId);
+        if (id != null) return id;
+
+        long stamp = this.lock.writeLock();
+        try {
+            return this.internLocked(userId);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    private int internLocked(String userId) {
+        Integer id = this.ids.get(userId);
+        if (id != null) return id;
+
+        if (this.size == this.userIds.length) {
+            this.userIds = Arrays.copyOf(this.userIds, this.size * 2);
+            this.friends = Arrays.copyOf(this.friends, this.size * 2);
+            this.ignored = Arrays.copyOf(this.ignored, this.size * 2);
+        }
+        this.userIds[this.size] = userId;
+        this.friends[this.size] = NONE;
+        this.ignored[this.size] = NONE;
+        this.ids.put(userId, this.size);
+
+        return this.size++;
+    }
+
+    /**
+     * Get the interned id of a user id.
+     *
+     * @param userId the unique id of an account
+     * @return the id, or -1 if the user id has never had a friend
+     */
+    public int idOf(String userId) {
+        Integer id = this.ids.get(userId);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Get the user id an id was interned for.
+     *
+     * @param id an interned id
+     */
+    public String userIdOf(int id) {
+        long stamp = this.lock.tryOptimisticRead();
+        String userId = this.userIds[id];
+        if (this.lock.validate(stamp)) return userId;
+
+        stamp = this.lock.readLock();
+        try {
+            return this.userIds[id];
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Make two accounts friends of each other.
+     *
+     * @return <code>true</code> if they were not friends already
+     */
+    public boolean add(String a, String b) {
+        if (a.equals(b)) return false;
+
+        long stamp = this.lock.writeLock();
+        try {
+            int x = this.internLocked(a);
+            int y = this.internLocked(b);
+            if (Arrays.binarySearch(this.friends[x], y) >= 0) return false;
+
+            this.friends[x] = with(this.friends[x], y);
+            this.friends[y] = with(this.friends[y], x);
+            ++this.friendships;
+            return true;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Make two accounts no longer friends of each other.
+     *
+     * @return <code>true</code> if they were friends
+     */
+    public boolean remove(String a, String b) {
+        int x = this.idOf(a);
+        int y = this.idOf(b);
+        if (x < 0 || y < 0) return false;
+
+        long stamp = this.lock.writeLock();
+        try {
+            if (Arrays.binarySearch(this.friends[x], y) < 0) return false;
+
+            this.friends[x] = without(this.friends[x], y);
+            this.friends[y] = without(this.friends[y], x);
+            if (Arrays.binarySearch(this.ignored[x], y) >= 0) this.ignored[x] = without(this.ignored[x], y);
+            if (Arrays.binarySearch(this.ignored[y], x) >= 0) this.ignored[y] = without(this.ignored[y], x);
+            --this.friendships;
+            return true;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Have an account ignore one of its friends.
+     *
+     * @param a the account ignoring
+     * @param b the friend ignored
+     * @return <code>true</code> if b is a friend that was not ignored already
+     */
+    public boolean ignore(String a, String b) {
+        int x = this.idOf(a);
+        int y = this.idOf(b);
+        if (x < 0 || y < 0) return false;
+
+        long stamp = this.lock.writeLock();
+        try {
+            if (Arrays.binarySearch(this.friends[x], y) < 0 || Arrays.binarySearch(this.ignored[x], y) >= 0) return false;
+
+            this.ignored[x] = with(this.ignored[x], y);
+            return true;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Have an account stop ignoring one of its friends.
+     *
+     * @param a the account ignoring
+     * @param b the friend ignored
+     * @return <code>true</code> if b was ignored
+     */
+    public boolean unignore(String a, String b) {
+        int x = this.idOf(a);
+        int y = this.idOf(b);
+        if (x < 0 || y < 0) return false;
+
+        long stamp = this.lock.writeLock();
+        try {
+            if (Arrays.binarySearch(this.ignored[x], y) < 0) return false;
+
+            this.ignored[x] = without(this.ignored[x], y);
+            return true;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /** Check whether an account ignores another. */
+    public boolean isIgnoring(String a, String b) {
+        int x = this.idOf(a);
+        int y = this.idOf(b);
+        if (x < 0 || y < 0) return false;
+
+        return Arrays.binarySearch(this.ignoredIds(x), y) >= 0;
+    }
+
+    /**
+     * Get the interned ids of the friends an account ignores, in
+     * ascending order. The array is shared and must not be
+     * changed.
+     *
+     * @param userId the unique id of an account
+     */
+    int[] getIgnoredIds(String userId) {
+        int id = this.idOf(userId);
+        return id < 0 ? NONE : this.ignoredIds(id);
+    }
+
+    /**
+     * Get the user ids of the friends an account ignores.
+     *
+     * @param userId the unique id of an account
+     */
+    public String[] getIgnored(String userId) {
+        int[] ignoredIds = this.getIgnoredIds(userId);
+        String[] result = new String[ignoredIds.length];
+
+        for (int i = 0; i < ignoredIds.length; ++i) result[i] = this.userIdOf(ignoredIds[i]);
+
+        return result;
+    }
+
+    /** Check whether two accounts are friends. */
+    public boolean areFriends(String a, String b) {
+        int x = this.idOf(a);
+        int y = this.idOf(b);
+        if (x < 0 || y < 0) return false;
+
+        return Arrays.binarySearch(this.friendIds(x), y) >= 0;
+    }
+
+    /**
+     * Get the interned ids of the friends of an account, in
+     * ascending order. The array is shared and must not be
+     * changed.
+     *
+     * @param userId the unique id of an account
+     */
+    int[] getFriendIds(String userId) {
+        int id = this.idOf(userId);
+        return id < 0 ? NONE : this.friendIds(id);
+    }
+
+    /**
+     * Get the user ids of the friends of an account.
+     *
+     * @param userId the unique id of an account
+     */
+    public String[] getFriends(String userId) {
+        int[] friendIds = this.getFriendIds(userId);
+        String[] result = new String[friendIds.length];
+
+        for (int i = 0; i < friendIds.length; ++i) result[i] = this.userIdOf(friendIds[i]);
+
+        return result;
+    }
+
+    /** Get the number of friends an account has. */
+    public int getFriendCount(String userId) {
+        return this.getFriendIds(userId).length;
+    }
+
+    /** Get the number of user ids interned. */
+    public int size() {
+        long stamp = this.lock.readLock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /** Get the number of friendships, each counted once. */
+    public long getFriendshipCount() {
+        long stamp = this.lock.readLock();
+        try {
+            return this.friendships;
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    private int[] friendIds(int id) {
+        long stamp = this.lock.tryOptimisticRead();
+        int[] result = this.friends[id];
+        if (this.lock.validate(stamp)) return result;
+
+        stamp = this.lock.readLock();
+        try {
+            return this.friends[id];
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    private int[] ignoredIds(int id) {
+        long stamp = this.lock.tryOptimisticRead();
+        int[] result = this.ignored[id];
+        if (this.lock.validate(stamp)) return result;
+
+        stamp = this.lock.readLock();
+        try {
+            return this.ignored[id];
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /** Copy a sorted array with a value added in order. */
+    private static int[] with(int[] sorted, int value) {
+        int at = -Arrays.binarySearch(sorted, value) - 1;
+        int[] result = new int[sorted.length + 1];
+
+        System.arraycopy(sorted, 0, result, 0, at);
+        result[at] = value;
+        System.arraycopy(sorted, at, result, at + 1, sorted.length - at);
+
+        return result;
+    }
+
+    /** Copy a sorted array with a value taken out. */
+    private static int[] without(int[] sorted, int value) {
+        int at = Arrays.binarySearch(sorted, value);
+        if (sorted.length == 1) return NONE;
+        int[] result = new int[sorted.length - 1];
+
+        System.arraycopy(sorted, 0, result, 0, at);
+        System.arraycopy(sorted, at + 1, result, at, sorted.length - at - 1);
+
+        return result;
+    }
+}
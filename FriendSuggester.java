@@ -0,0 +1,215 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Suggests friends from a {@link FriendGraph}: the accounts
+ * that are friends of an account's friends, but not its
+ * friends already, ranked by how many friends they share
+ * with it.
+ *
+ * The friends of a user's friends are tallied on the common
+ * fork-join pool, split by friend, once there are enough of
+ * them to be worth it. The best suggestions for each user
+ * are cached until a friendship changes anything they were
+ * worked out from, which is the friends of the user and
+ * the friends of those.
+ *
+ * @version %I%, %G%
+ */
+public class FriendSuggester {
+    /** The most suggestions worked out and cached per user. */
+    public static final int MAX_SUGGESTIONS = 50;
+    // Friends-of-friends tallied by one task before it is split
+    private static final int SPLIT_THRESHOLD = 8192;
+
+    private FriendGraph graph;
+    private Map<Integer, Ranked> cache = new ConcurrentHashMap<Integer, Ranked>();
+    // Counts friendship changes, so that a result worked out while
+    // one happened is not cached
+    private AtomicLong changes = new AtomicLong();
+
+    /** The suggestions for one user, best first. */
+    static class Ranked {
+        final int[] ids;
+        final int[] mutualFriends;
+
+        private Ranked(int[] ids, int[] mutualFriends) {
+            this.ids = ids;
+            this.mutualFriends = mutualFriends;
+        }
+    }
+
+    /**
+     * Create a suggester.
+     *
+     * @param graph the friendships suggestions are made from
+     */
+    public FriendSuggester(FriendGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Get the best suggestions for a user, from the cache if
+     * nothing they depend on has changed.
+     *
+     * @param userId the unique id of an account
+     * @return the interned ids of the suggested accounts and their mutual friends, best first
+     */
+    Ranked suggest(String userId) {
+        int id = this.graph.idOf(userId);
+        if (id < 0) return new Ranked(new int[0], new int[0]);
+
+        Ranked cached = this.cache.get(id);
+        if (cached != null) return cached;
+
+        long before = this.changes.get();
+        Ranked ranked = this.rank(id);
+        this.cache.put(id, ranked);
+        if (this.changes.get() != before) this.cache.remove(id, ranked);
+
+        return ranked;
+    }
+
+    /**
+     * Forget the suggestions a change to the friendship of two
+     * accounts may have made wrong. Called after the graph has
+     * changed.
+     */
+    public void friendshipChanged(String a, String b) {
+        this.changes.incrementAndGet();
+        this.forget(a);
+        this.forget(b);
+    }
+
+    private void forget(String userId) {
+        int id = this.graph.idOf(userId);
+        if (id < 0) return;
+
+        this.cache.remove(id);
+        for (int friend : this.graph.getFriendIds(userId)) this.cache.remove(friend);
+    }
+
+    /** Get the number of users whose suggestions are cached. */
+    public int getCachedCount() {
+        return this.cache.size();
+    }
+
+    private Ranked rank(int id) {
+        int[] friends = this.graph.getFriendIds(this.graph.userIdOf(id));
+        int[][] theirFriends = new int[friends.length][];
+        long[] work = new long[friends.length + 1];
+
+        for (int i = 0; i < friends.length; ++i) {
+            theirFriends[i] = this.graph.getFriendIds(this.graph.userIdOf(friends[i]));
+            work[i + 1] = work[i] + theirFriends[i].length;
+        }
+        Tally tally = new Count(theirFriends, work, 0, friends.length).invoke();
+
+        // Highest count first, then the longest known account
+        long[] candidates = new long[tally.size];
+        int n = 0;
+        for (int i = 0; i < tally.size; ++i) {
+            int candidate = tally.ids[i];
+            if (candidate == id || Arrays.binarySearch(friends, candidate) >= 0) continue;
+
+            candidates[n++] = ((long) tally.counts[i] << 32) | (Integer.MAX_VALUE - candidate);
+        }
+        Arrays.sort(candidates, 0, n);
+
+        int size = Math.min(n, MAX_SUGGESTIONS);
+        int[] ids = new int[size];
+        int[] mutualFriends = new int[size];
+        for (int i = 0; i < size; ++i) {
+            long c = candidates[n - 1 - i];
+            ids[i] = Integer.MAX_VALUE - (int) c;
+            mutualFriends[i] = (int) (c >>> 32);
+        }
+
+        return new Ranked(ids, mutualFriends);
+    }
+
+    /** How often each id occurs, in ascending order of id. */
+    private static class Tally {
+        final int[] ids;
+        final int[] counts;
+        final int size;
+
+        private Tally(int[] ids, int[] counts, int size) {
+            this.ids = ids;
+            this.counts = counts;
+            this.size = size;
+        }
+
+        /** Add two tallies together. */
+        private Tally plus(Tally t) {
+            int[] ids = new int[this.size + t.size];
+            int[] counts = new int[this.size + t.size];
+            int i = 0, j = 0, n = 0;
+
+            while (i < this.size || j < t.size) {
+                if (j == t.size || (i < this.size && this.ids[i] < t.ids[j])) {
+                    ids[n] = this.ids[i];
+                    counts[n++] = this.counts[i++];
+                } else if (i == this.size || t.ids[j] < this.ids[i]) {
+                    ids[n] = t.ids[j];
+                    counts[n++] = t.counts[j++];
+                } else {
+                    ids[n] = this.ids[i];
+                    counts[n++] = this.counts[i++] + t.counts[j++];
+                }
+            }
+
+            return new Tally(ids, counts, n);
+        }
+    }
+
+    /** Tallies the friends of a range of a user's friends. */
+    private static class Count extends RecursiveTask<Tally> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[][] theirFriends;
+        private final long[] work;
+        private final int from;
+        private final int to;
+
+        private Count(int[][] theirFriends, long[] work, int from, int to) {
+            this.theirFriends = theirFriends;
+            this.work = work;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected Tally compute() {
+            if (this.to - this.from > 1 && this.work[this.to] - this.work[this.from] > SPLIT_THRESHOLD) {
+                int middle = (this.from + this.to) >>> 1;
+                Count right = new Count(this.theirFriends, this.work, middle, this.to);
+                right.fork();
+
+                return new Count(this.theirFriends, this.work, this.from, middle).compute().plus(right.join());
+            }
+
+            int[] all = new int[(int) (this.work[this.to] - this.work[this.from])];
+            for (int i = this.from, at = 0; i < this.to; at += this.theirFriends[i].length, ++i) {
+                System.arraycopy(this.theirFriends[i], 0, all, at, this.theirFriends[i].length);
+            }
+            Arrays.sort(all);
+
+            int[] ids = new int[all.length];
+            int[] counts = new int[all.length];
+            int n = 0;
+            for (int i = 0; i < all.length; ++i) {
+                if (n > 0 && ids[n - 1] == all[i]) {
+                    ++counts[n - 1];
+                } else {
+                    ids[n] = all[i];
+                    counts[n++] = 1;
+                }
+            }
+
+            return new Tally(ids, counts, n);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The answer of a Client Proxy to {@link SuggestFriends}: the
+ * suggested accounts, best first, and how many friends each
+ * shares with the user.
+ *
+ * @version %I%, %G%
+ */
+public class FriendSuggestions extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private List<Account> accounts;
+    private int[] mutualFriends;
+
+    /**
+     * Constructor
+     *
+     * @param accounts the suggested accounts, best first
+     * @param mutualFriends the number of friends shared with each, in the same order
+     */
+    public FriendSuggestions(List<Account> accounts, int[] mutualFriends) {
+        if (accounts.size() != mutualFriends.length) throw new IllegalArgumentException("Expected " + accounts.size() + " counts, got " + mutualFriends.length);
+        this.accounts = accounts;
+        this.mutualFriends = mutualFriends;
+    }
+
+    /** Get the suggested accounts, best first. */
+    public List<Account> getAccounts() {
+        return Collections.unmodifiableList(this.accounts);
+    }
+
+    /**
+     * Get the number of friends a suggested account shares with the user.
+     *
+     * @param i the index of the account in {@link #getAccounts}
+     */
+    public int getMutualFriends(int i) {
+        return this.mutualFriends[i];
+    }
+}
@@ -0,0 +1,167 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Maps each type of message from a client to the handler for
+ * it. A Client Proxy passes every message it receives to
+ * {@link #dispatch}, so a new type of message only needs a
+ * handler registered here.
+ *
+ * Each registered type also keeps count of how many messages
+ * were handled, how long they took, how many failed and how
+ * many were turned away, and may be limited to a number of
+ * messages handled at once across all clients. Messages of a
+ * type with no handler are counted and otherwise ignored.
+ *
+ * @version %I%, %G%
+ * @see MessageHandler
+ */
+public class HandlerRegistry {
+    /** A handler for one type of message and its statistics. */
+    public static class Registration<T> {
+        private final Class<T> type;
+        private final MessageHandler<? super T> handler;
+        private volatile Semaphore admission;
+        private final LongAdder handled  = new LongAdder();
+        private final LongAdder nanos    = new LongAdder();
+        private final LongAdder errors   = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        private Registration(Class<T> type, MessageHandler<? super T> handler) {
+            this.type = type;
+            this.handler = handler;
+        }
+
+        private boolean dispatch(Server.ClientProxy proxy, Object message) {
+            T m = this.type.cast(message);
+            Semaphore admission = this.admission;
+
+            if (admission != null && !admission.tryAcquire()) {
+                this.rejected.increment();
+                this.handler.rejected(proxy, m);
+                return true;
+            }
+
+            long began = System.nanoTime();
+            try {
+                return this.handler.handle(proxy, m);
+            } catch (RuntimeException e) {
+                this.errors.increment();
+                throw e;
+            } finally {
+                this.nanos.add(System.nanoTime() - began);
+                this.handled.increment();
+                if (admission != null) admission.release();
+            }
+        }
+
+        /** Get the number of messages handled, including those that failed. */
+        public long getHandled() {
+            return this.handled.sum();
+        }
+
+        /** Get the total time spent handling messages, in nanoseconds. */
+        public long getNanos() {
+            return this.nanos.sum();
+        }
+
+        /** Get the number of messages whose handler threw an exception. */
+        public long getErrors() {
+            return this.errors.sum();
+        }
+
+        /** Get the number of messages turned away by the limit. */
+        public long getRejected() {
+            return this.rejected.sum();
+        }
+
+        public String toString() {
+            long handled = this.getHandled();
+
+            return String.format("%-16s %10d handled %9.1f us avg %6d errors %6d rejected",
+                                 this.type.getSimpleName(), handled,
+                                 handled == 0 ? 0.0 : this.getNanos() / 1000.0 / handled,
+                                 this.getErrors(), this.getRejected());
+        }
+    }
+
+    private Map<Class<?>, Registration<?>> registrations = new ConcurrentHashMap<Class<?>, Registration<?>>();
+    private Map<Class<?>, LongAdder> unknown = new ConcurrentHashMap<Class<?>, LongAdder>();
+
+    /**
+     * Register the handler for a type of message, replacing any
+     * handler it had.
+     *
+     * @param type the class of the message, matched exactly
+     * @param handler the handler
+     */
+    public <T> void register(Class<T> type, MessageHandler<? super T> handler) {
+        this.registrations.put(type, new Registration<T>(type, handler));
+    }
+
+    /**
+     * Limit the number of messages of a type handled at once, across
+     * all clients. Messages beyond the limit are passed to
+     * {@link MessageHandler#rejected} instead.
+     *
+     * @param type the class of the message, which must have a handler
+     * @param limit the most messages handled at once, or 0 for no limit
+     */
+    public void setLimit(Class<?> type, int limit) {
+        Registration<?> r = this.registrations.get(type);
+        if (r == null) throw new IllegalArgumentException("No handler for " + type.getName());
+
+        r.admission = limit > 0 ? new Semaphore(limit) : null;
+    }
+
+    /**
+     * Handle a message with the handler for its class.
+     *
+     * @param proxy the proxy of the client the message is from
+     * @param message the message
+     * @return <code>false</code> if the client has logged out, else <code>true</code>
+     */
+    public boolean dispatch(Server.ClientProxy proxy, Object message) {
+        Registration<?> r = this.registrations.get(message.getClass());
+
+        if (r == null) {
+            LongAdder count = this.unknown.computeIfAbsent(message.getClass(), c -> new LongAdder());
+            if (count.sum() == 0) System.err.println("!! No handler for " + message.getClass().getName());
+            count.increment();
+            return true;
+        }
+
+        return r.dispatch(proxy, message);
+    }
+
+    /** Get the registration of a type of message, or <code>null</code> if it has no handler. */
+    public Registration<?> getRegistration(Class<?> type) {
+        return this.registrations.get(type);
+    }
+
+    /** Get the number of messages received of a type with no handler. */
+    public long getUnknown(Class<?> type) {
+        LongAdder count = this.unknown.get(type);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Get a table of the statistics of every type of message,
+     * one line per type.
+     */
+    public String report() {
+        StringBuilder result = new StringBuilder();
+        Map<String, Registration<?>> sorted = new TreeMap<String, Registration<?>>();
+
+        for (Registration<?> r : this.registrations.values()) sorted.put(r.type.getSimpleName(), r);
+        for (Registration<?> r : sorted.values()) result.append(r).append('\n');
+        for (Map.Entry<Class<?>, LongAdder> e : this.unknown.entrySet()) {
+            result.append(String.format("%-16s %10d unknown%n", e.getKey().getSimpleName(), e.getValue().sum()));
+        }
+
+        return result.toString();
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The stage between accepting a connection and starting its
+ * Client Proxy. The handshake of each new connection, which
+ * blocks until the client has sent its Login, is run on a
+ * small pool of workers instead of the accept loop, within a
+ * deadline, so that a slow or silent client only holds up
+ * one worker for a while rather than every connection after
+ * it. A connection still logging in when its deadline passes
+ * is closed, however slowly its client keeps sending.
+ *
+ * At most a fixed number of handshakes are pending at once.
+ * When they all are, the accept loop waits for one to finish
+ * before it accepts again, and new connections wait in the
+ * listen queue of the server socket.
+ *
+ * @version %I%, %G%
+ */
+public class HandshakeStage {
+    /** Default number of handshakes run at once. */
+    public static final int DEFAULT_WORKERS = 32;
+    /** Default number of handshakes accepted but not yet finished. */
+    public static final int DEFAULT_MAX_PENDING = 1024;
+    /** Default time a client has to send its Login. */
+    public static final int DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private Server server;
+    private ExecutorService workers;
+    // Closes the connections whose handshakes have run out of time
+    private ScheduledThreadPoolExecutor deadlines;
+    private Semaphore pending;
+    private int timeoutMillis;
+
+    /**
+     * Create a handshake stage.
+     *
+     * @param server the server new clients are logged in to
+     * @param workers the number of handshakes run at once
+     * @param maxPending the number of handshakes accepted but not yet finished
+     * @param timeoutMillis the time a client has to send its Login
+     */
+    public HandshakeStage(Server server, int workers, int maxPending, int timeoutMillis) {
+        final AtomicInteger count = new AtomicInteger();
+
+        this.server = server;
+        this.pending = new Semaphore(maxPending);
+        this.timeoutMillis = timeoutMillis;
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "handshake-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.deadlines = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "handshake-deadline");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.deadlines.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Wait until another handshake may be started. Called by the
+     * accept loop before each accept.
+     */
+    public void awaitCapacity() throws InterruptedException {
+        this.pending.acquire();
+    }
+
+    /**
+     * Start the handshake of a newly accepted connection. The
+     * caller must have waited for capacity first.
+     *
+     * @param socket the connection
+     */
+    public void submit(final Socket socket) {
+        this.workers.execute(new Runnable() {
+            public void run() {
+                // The whole handshake, not each read, must finish in time
+                ScheduledFuture<?> deadline = HandshakeStage.this.deadlines.schedule(() -> closeQuietly(socket),
+                                                                                    HandshakeStage.this.timeoutMillis, TimeUnit.MILLISECONDS);
+                try {
+                    if (!Server.ClientProxy.attemptEstablishConnection(socket, HandshakeStage.this.server)) socket.close();
+                } catch (Exception e) {
+                    System.err.println("!! Handshake failed with " + socket.getInetAddress() + ":" + socket.getPort() + ": " + e.getMessage());
+                    closeQuietly(socket);
+                } finally {
+                    deadline.cancel(false);
+                    HandshakeStage.this.pending.release();
+                }
+            }
+        });
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ioe) {
+            // Already gone
+        }
+    }
+
+    /** Get the number of handshakes that may still be started before the accept loop waits. */
+    public int getCapacity() {
+        return this.pending.availablePermits();
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * Ignore friend event. The Client Proxy stops sending the
+ * posts of an ignored friend, rather than the Client
+ * throwing them away after they have been sent.
+ *
+ * @version %I%, %G%
+ */
+public class IgnoreFriend extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private Account friendToBeIgnored;
+
+    /**
+     * Constructor
+     *
+     * @param friendToBeIgnored Account of friend to ignore.
+     */
+    public IgnoreFriend(Account friendToBeIgnored) {
+        this.friendToBeIgnored = friendToBeIgnored;
+    }
+
+    /** Get which friend is to be ignored. */
+    public Account getFriend() {
+        return this.friendToBeIgnored;
+    }
+}
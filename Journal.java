@@ -0,0 +1,217 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records the mutations of a Server in a write-ahead log,
+ * and replays them into a Server when it starts. Each
+ * kind of mutation has its own record type, and accounts
+ * are referred to by user id.
+ *
+ * @version %I%, %G%
+ * @see WriteAheadLog
+ */
+public class Journal implements AutoCloseable {
+    private static final byte ADD_ACCOUNT    = 1;
+    private static final byte ADD_LOGIN      = 2;
+    private static final byte REMOVE_ACCOUNT = 3;
+    private static final byte REMOVE_LOGIN   = 4;
+    private static final byte ADD_POST       = 5;
+    private static final byte ADD_FRIEND     = 6;
+    private static final byte REMOVE_FRIEND  = 7;
+    private static final byte UPDATE_ACCOUNT = 8;
+    private static final byte IGNORE_FRIEND  = 9;
+    private static final byte UNIGNORE_FRIEND = 10;
+
+    private WriteAheadLog log;
+    // The LSN just past the last record a thread appended in its
+    // current batch, 0 if none yet; unset outside a batch
+    private ThreadLocal<Long> batchEnd = new ThreadLocal<Long>();
+
+    /**
+     * Create a journal.
+     *
+     * @param log the log the records are appended to
+     */
+    public Journal(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    /** Get the log the records are appended to. */
+    public WriteAheadLog getLog() {
+        return this.log;
+    }
+
+    /** Record that an account has been added. */
+    public void addAccount(Account a) throws IOException {
+        this.append(ADD_ACCOUNT, a.getUserId(), a.getName());
+    }
+
+    /** Record that a login has been added. */
+    public void addLogin(Login l) throws IOException {
+        this.append(ADD_LOGIN, l.getAccount().getUserId(), l.getAccount().getName(), l.getPassword());
+    }
+
+    /** Record that an account has been removed. */
+    public void removeAccount(Account a) throws IOException {
+        this.append(REMOVE_ACCOUNT, a.getUserId());
+    }
+
+    /** Record that a login has been removed. */
+    public void removeLogin(Login l) throws IOException {
+        this.append(REMOVE_LOGIN, l.getAccount().getUserId());
+    }
+
+    /** Record that an account has changed its name and password. */
+    public void updateAccount(Login l) throws IOException {
+        this.append(UPDATE_ACCOUNT, l.getAccount().getUserId(), l.getAccount().getName(), l.getPassword());
+    }
+
+    /** Record that a post has been made. */
+    public void addPost(Post p) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeLong(p.getGlobalPostId());
+        FileCodec.writeString(out, p.getPoster().getUserId());
+        FileCodec.writeString(out, p.getContent());
+        this.append(ADD_POST, bytes.toByteArray());
+    }
+
+    /** Record that two accounts have become friends. */
+    public void addFriend(Account a, Account b) throws IOException {
+        this.append(ADD_FRIEND, a.getUserId(), b.getUserId());
+    }
+
+    /** Record that two accounts are no longer friends. */
+    public void removeFriend(Account a, Account b) throws IOException {
+        this.append(REMOVE_FRIEND, a.getUserId(), b.getUserId());
+    }
+
+    /** Record that an account has started ignoring a friend. */
+    public void ignoreFriend(Account a, Account b) throws IOException {
+        this.append(IGNORE_FRIEND, a.getUserId(), b.getUserId());
+    }
+
+    /** Record that an account has stopped ignoring a friend. */
+    public void unignoreFriend(Account a, Account b) throws IOException {
+        this.append(UNIGNORE_FRIEND, a.getUserId(), b.getUserId());
+    }
+
+    /**
+     * Start a batch on the calling thread. Until {@link #endBatch},
+     * the records it appends do not wait to be forced one by one.
+     * Does nothing if the thread is already in a batch.
+     */
+    public void beginBatch() {
+        if (this.batchEnd.get() == null) this.batchEnd.set(0L);
+    }
+
+    /**
+     * End the calling thread's batch, waiting until every record
+     * appended in it is as durable as the log promises.
+     */
+    public void endBatch() throws IOException {
+        Long end = this.batchEnd.get();
+        this.batchEnd.remove();
+
+        if (end != null && end > 0) this.log.awaitDurable(end);
+    }
+
+    private void append(byte type, String... fields) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        for (String field : fields) FileCodec.writeString(out, field);
+        this.append(type, bytes.toByteArray());
+    }
+
+    private void append(byte type, byte[] payload) throws IOException {
+        if (this.batchEnd.get() == null) {
+            this.log.append(type, payload);
+        } else {
+            this.batchEnd.set(this.log.appendDeferred(type, payload));
+        }
+    }
+
+    /**
+     * Apply the recorded mutations to a server, in the order they
+     * were made. The server must not be journaling while this runs,
+     * or the mutations would be recorded a second time.
+     *
+     * @param from the LSN of the first record to apply
+     * @param server the server to apply the mutations to
+     * @return the LSN just past the last record applied
+     */
+    public long replay(long from, final Server server) throws IOException {
+        return this.log.replay(from, new WriteAheadLog.Replayer() {
+            public void apply(long lsn, byte type, ByteBuffer in) throws IOException {
+                Journal.apply(server, type, in);
+            }
+        });
+    }
+
+    private static void apply(Server server, byte type, ByteBuffer in) throws IOException {
+        switch (type) {
+        case ADD_ACCOUNT: {
+            server.addAccount(new Account(FileCodec.readString(in), FileCodec.readString(in)));
+            break;
+        }
+        case ADD_LOGIN: {
+            Account a = resolve(server, FileCodec.readString(in), FileCodec.readString(in));
+            server.addLogin(new Login(a, FileCodec.readString(in)));
+            break;
+        }
+        case REMOVE_ACCOUNT: {
+            Account a = server.getAccountFor(FileCodec.readString(in));
+            if (a != null) server.removeAccount(a);
+            break;
+        }
+        case REMOVE_LOGIN: {
+            Login l = server.getLoginFor(FileCodec.readString(in));
+            if (l != null) server.removeLogin(l);
+            break;
+        }
+        case UPDATE_ACCOUNT: {
+            Account a = new Account(FileCodec.readString(in), FileCodec.readString(in));
+            server.updateAccount(new Login(a, FileCodec.readString(in)));
+            break;
+        }
+        case ADD_POST: {
+            long id = in.getLong();
+            Account poster = resolve(server, FileCodec.readString(in), null);
+            server.addPost(new Post(id, poster, FileCodec.readString(in)));
+            break;
+        }
+        case ADD_FRIEND: {
+            server.addFriendship(resolve(server, FileCodec.readString(in), null), resolve(server, FileCodec.readString(in), null));
+            break;
+        }
+        case REMOVE_FRIEND: {
+            server.removeFriendship(resolve(server, FileCodec.readString(in), null), resolve(server, FileCodec.readString(in), null));
+            break;
+        }
+        case IGNORE_FRIEND: {
+            server.ignoreFriend(resolve(server, FileCodec.readString(in), null), resolve(server, FileCodec.readString(in), null));
+            break;
+        }
+        case UNIGNORE_FRIEND: {
+            server.unignoreFriend(resolve(server, FileCodec.readString(in), null), resolve(server, FileCodec.readString(in), null));
+            break;
+        }
+        default:
+            throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private static Account resolve(Server server, String userId, String name) {
+        Account a = server.getAccountFor(userId);
+        return a != null ? a : new Account(userId, name);
+    }
+
+    /** Force the journal to disk and close it. */
+    public void close() throws IOException {
+        this.log.close();
+    }
+}
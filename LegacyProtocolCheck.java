@@ -0,0 +1,169 @@
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Checks that clients from before the binary protocol, which
+ * speak Java object serialization, can still use the Server.
+ *
+ * First, every class such a client sends or receives must
+ * keep the serialVersionUID it was first released with, and
+ * every field such a client knows of must keep its type.
+ * Then a server is started in this process, and two clients
+ * log in, befriend, post, sync and log out over plain object
+ * streams, the way the first client did, expecting no message
+ * that client did not know of.
+ *
+ * Usage: <code>java LegacyProtocolCheck</code>
+ *
+ * @version %I%, %G%
+ */
+public class LegacyProtocolCheck {
+    private static final PrintStream report = System.out;
+
+    // Each class as first released: its name, its serialVersionUID
+    // and the name and type of each of its fields
+    private static final String[][] RELEASED = {
+        { "Account",          "-856034769577393004",  "postsAtLastSync:I", "friends:Ljava/util/Set;", "ignoredFriends:Ljava/util/Set;",
+                                                      "name:Ljava/lang/String;", "userId:Ljava/lang/String;" },
+        { "AddFriend",        "5053787754187203497",  "friendToBeAdded:LAccount;" },
+        { "Login",            "3632078570883646276",  "account:LAccount;", "password:Ljava/lang/String;" },
+        { "Logout",           "-4233702463230882220", "account:LAccount;" },
+        { "Message",          "-2723363051271966964" },
+        { "Post",             "-7213602912653346034", "globalPostId:I", "content:Ljava/lang/String;", "poster:LAccount;" },
+        { "PostMessage",      "-3499115250552643181", "msg:Ljava/lang/String;" },
+        { "RemoveFriend",     "-3049775359952010652", "friendToBeRemoved:LAccount;" },
+        { "SyncRequest",      "2653716831002425771" },
+        { "SyncResponse",     "4694931784409174389",  "posts:Ljava/util/List;", "users:Ljava/util/Set;" },
+        { "ValidatePassword", "-775488120837493075",  "login:LLogin;" },
+    };
+
+    public static void main(String[] args) throws Exception {
+        int failures = checkClasses();
+        // The proxies log every message; keep that out of the report
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        failures += checkConversation();
+        System.setOut(report);
+
+        report.println(failures == 0 ? "!! Legacy clients are supported" : "!! " + failures + " checks failed");
+        if (failures > 0) System.exit(1);
+    }
+
+    private static int checkClasses() throws ClassNotFoundException {
+        int failures = 0;
+
+        for (String[] released : RELEASED) {
+            ObjectStreamClass current = ObjectStreamClass.lookup(Class.forName(released[0]));
+
+            if (current.getSerialVersionUID() != Long.parseLong(released[1])) {
+                report.println("!! " + released[0] + " has serialVersionUID " + current.getSerialVersionUID() + ", released with " + released[1]);
+                ++failures;
+            }
+            for (int i = 2; i < released.length; ++i) {
+                String name = released[i].substring(0, released[i].indexOf(':'));
+                String type = released[i].substring(name.length() + 1);
+                ObjectStreamField field = current.getField(name);
+
+                // A field no longer serialized is left at its default by old clients
+                if (field != null && !type.equals(signature(field))) {
+                    report.println("!! " + released[0] + "." + name + " is serialized as " + signature(field) + ", released as " + type);
+                    ++failures;
+                }
+            }
+        }
+
+        return failures;
+    }
+
+    private static String signature(ObjectStreamField field) {
+        return field.isPrimitive() ? String.valueOf(field.getTypeCode()) : field.getTypeString();
+    }
+
+    /** An object stream client, as the first Client was. */
+    private static class LegacyClient {
+        private ObjectOutputStream out;
+        private ObjectInputStream in;
+        private Account account;
+
+        private LegacyClient(ServerSocket server, String userId, String name) throws Exception {
+            Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+            this.out = new ObjectOutputStream(socket.getOutputStream());
+            this.out.writeObject(new Login(new Account(userId, name), "secret"));
+            this.out.flush();
+            this.in = new ObjectInputStream(socket.getInputStream());
+            this.account = (Account) this.in.readObject();
+        }
+
+        private void send(Object message) throws Exception {
+            this.out.writeObject(message);
+            this.out.flush();
+        }
+
+        private Object request(Object message) throws Exception {
+            this.send(message);
+            return this.in.readObject();
+        }
+
+        /** Wait until the server has handled what was sent before. */
+        private boolean validate() throws Exception {
+            return Boolean.TRUE.equals(this.request(new ValidatePassword(new Login(this.account, "secret"))));
+        }
+    }
+
+    private static int checkConversation() throws Exception {
+        final Server server = new Server();
+        final ServerSocket socket = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+        int failures = 0;
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                while (!socket.isClosed()) {
+                    try {
+                        Server.ClientProxy.attemptEstablishConnection(socket.accept(), server);
+                    } catch (Exception e) {
+                        // Closed at the end of the check
+                    }
+                }
+            }
+        }, "acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        try {
+            LegacyClient alice = new LegacyClient(socket, "alice@example.com", "Alice");
+            LegacyClient bob = new LegacyClient(socket, "bob@example.com", "Bob");
+
+            alice.send(new AddFriend(bob.account));
+            // Anything sent after the account, such as a session token, would come first
+            if (!alice.validate()) {
+                report.println("!! Login was not answered with the account alone");
+                ++failures;
+            }
+            bob.send(new PostMessage("Hello from an old client"));
+            bob.validate();
+
+            Object reply = alice.request(new SyncRequest());
+            if (!(reply instanceof SyncResponse)) {
+                report.println("!! Sync was answered with " + reply);
+                ++failures;
+            } else if (((SyncResponse) reply).getPosts().size() != 1
+                       || !((SyncResponse) reply).getPosts().get(0).getContent().equals("Hello from an old client")) {
+                report.println("!! Sync did not bring the friend's post");
+                ++failures;
+            }
+
+            alice.send(new Logout(alice.account));
+            bob.send(new Logout(bob.account));
+        } finally {
+            socket.close();
+        }
+
+        return failures;
+    }
+}
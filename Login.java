@@ -9,7 +9,9 @@
  * @version %I%, %G%
  */
 
-public class Login implements java.io.Serializable, Comparable<Login> {
+public class Login extends Message implements Comparable<Login> {
+    private static final long serialVersionUID = 3632078570883646276L;
+
     private Account account;
     private String password;
 
@@ -59,4 +61,11 @@ public class Login implements java.io.Serializable, Comparable<Login> {
 	    return false;
 	}
     }
+
+    /**
+     * Hash on the login's account, consistent with {@link #equals}.
+     */
+    public int hashCode() {
+	return this.account.hashCode();
+    }
 }
@@ -1,6 +1,8 @@
 
 /** Logout event. */
-public class Logout implements java.io.Serializable {
+public class Logout extends Message {
+    private static final long serialVersionUID = -4233702463230882220L;
+
     private Account account;
 
     /**
@@ -1,17 +1,21 @@
 /**
- * Currently unused class, intended to be used as 
- * a superclass of the other message classes in the 
- * program.
+ * The superclass of the messages sent between a Client
+ * and its Client Proxy.
  *
  * @version %I%, %G%
  * @see AddFriend
+ * @see Batch
  * @see Login
  * @see Logout
  * @see PostMessage
  * @see RemoveFriend
+ * @see Subscribe
  * @see SyncRequest
  * @see SyncResponse
+ * @see ValidatePassword
  */
 
 public class Message implements java.io.Serializable {
+    // As first released, so that old clients can still read messages
+    private static final long serialVersionUID = -2723363051271966964L;
 }
@@ -0,0 +1,20 @@
+import java.io.IOException;
+
+/**
+ * A connection over which the Client and the Client Proxy
+ * exchange messages, read by blocking until each message
+ * arrives. Sent messages are buffered until the channel is
+ * flushed.
+ *
+ * @version %I%, %G%
+ * @see ObjectChannel
+ * @see BinaryChannel
+ */
+public interface MessageChannel extends MessageSink {
+    /**
+     * Wait for the next message.
+     *
+     * @return the message received
+     */
+    Object receive() throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,30 @@
+/**
+ * Handles one type of message from a client on behalf of its
+ * Client Proxy. Handlers are registered per message class in
+ * a {@link HandlerRegistry}.
+ *
+ * @version %I%, %G%
+ * @see HandlerRegistry
+ */
+public interface MessageHandler<T> {
+    /**
+     * Handle a message.
+     *
+     * @param proxy the proxy of the client the message is from
+     * @param message the message
+     * @return <code>false</code> if the client has logged out, else <code>true</code>
+     */
+    boolean handle(Server.ClientProxy proxy, T message);
+
+    /**
+     * Called instead of {@link #handle} when the message was turned
+     * away because too many of its type were being handled at once.
+     * A handler whose client waits for a reply should send one that
+     * tells the client nothing has changed. Does nothing by default.
+     *
+     * @param proxy the proxy of the client the message is from
+     * @param message the message
+     */
+    default void rejected(Server.ClientProxy proxy, T message) {
+    }
+}
@@ -0,0 +1,34 @@
+import java.io.IOException;
+
+/**
+ * The sending side of a connection over which the Client and
+ * the Client Proxy exchange messages. Sent messages are
+ * buffered until the sink is flushed. A Client Proxy only
+ * ever sends through one; how messages are received is up
+ * to the connection engine.
+ *
+ * @version %I%, %G%
+ * @see MessageChannel
+ */
+public interface MessageSink extends AutoCloseable {
+    /**
+     * Queue a message to be sent on the next {@link #flush}.
+     *
+     * @param message the message to send
+     */
+    void send(Object message) throws IOException;
+
+    /** Send every queued message. */
+    void flush() throws IOException;
+
+    /** Close the connection. */
+    void close() throws IOException;
+
+    /**
+     * Get an estimate of the heap the sink keeps for its
+     * connection beyond a fixed overhead: buffers grown to fit
+     * large messages, messages not yet written and objects an
+     * object stream remembers.
+     */
+    long getRetainedBytes();
+}
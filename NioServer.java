@@ -0,0 +1,467 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection engine for the Server built on non-blocking
+ * I/O, as an alternative to one thread per Client Proxy.
+ * A small, fixed number of event loop threads each watch
+ * many connections with a selector and read the frames of
+ * the binary protocol as they arrive. Each message is handed
+ * to the same {@link Server.ClientProxy#handle} the threaded
+ * engine uses, on a pool of workers, since a handler may wait
+ * for the journal to be forced; the messages of a connection
+ * are handled one at a time, in order. An idle connection
+ * costs no thread and no read buffer of its own.
+ *
+ * Only the binary protocol is spoken; a client that starts
+ * with the Java serialization stream header is disconnected.
+ *
+ * @version %I%, %G%
+ * @see BinaryChannel
+ */
+public class NioServer {
+    /** Bytes queued for a client beyond which it is considered too slow and disconnected. */
+    public static final int MAX_OUTBOUND_BYTES = 8 * 1024 * 1024;
+    /** Default number of workers messages are handled on. */
+    public static final int DEFAULT_WORKERS = 32;
+    /** Messages read from a client but not yet handled beyond which it is not read from. */
+    public static final int MAX_PENDING_MESSAGES = 64;
+
+    private Server server;
+    private ServerSocketChannel acceptor;
+    private EventLoop[] loops;
+    private ExecutorService workers;
+
+    /**
+     * Create an engine and bind it to a port.
+     *
+     * @param server the server the connections are for
+     * @param port the port to listen on
+     * @param threads the number of event loop threads
+     */
+    public NioServer(Server server, int port, int threads) throws IOException {
+        this(server, port, threads, DEFAULT_WORKERS);
+    }
+
+    /**
+     * Create an engine and bind it to a port.
+     *
+     * @param server the server the connections are for
+     * @param port the port to listen on
+     * @param threads the number of event loop threads
+     * @param workers the number of threads messages are handled on
+     */
+    public NioServer(Server server, int port, int threads, int workers) throws IOException {
+        final AtomicInteger count = new AtomicInteger();
+
+        this.server = server;
+        this.workers = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "nio-worker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.acceptor = ServerSocketChannel.open();
+        this.acceptor.bind(new InetSocketAddress(port), 1024);
+
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; ++i) {
+            this.loops[i] = new EventLoop();
+            Thread t = new Thread(this.loops[i], "event-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Accept connections forever, handing them out to the
+     * event loops in turn.
+     */
+    public void serve() throws IOException {
+        System.out.println("!! Server listening for connections: " + this.acceptor.getLocalAddress() + " (" + this.loops.length + " event loops)");
+
+        for (int next = 0; ; next = (next + 1) % this.loops.length) {
+            SocketChannel channel = this.acceptor.accept();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            this.loops[next].register(channel);
+        }
+    }
+
+    /** One event loop thread and the connections it watches. */
+    private class EventLoop implements Runnable {
+        private Selector selector;
+        private Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<SocketChannel>();
+        // Shared by every connection of the loop; a connection only
+        // keeps bytes of its own while it has half a frame
+        private ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        private EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        private void register(SocketChannel channel) {
+            this.registrations.add(channel);
+            this.selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    this.selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = this.registrations.poll()) != null) {
+                        Connection c = new Connection(this, channel);
+                        c.key = channel.register(this.selector, SelectionKey.OP_READ, c);
+                    }
+
+                    for (Iterator<SelectionKey> i = this.selector.selectedKeys().iterator(); i.hasNext(); ) {
+                        SelectionKey key = i.next();
+                        i.remove();
+                        Connection c = (Connection) key.attachment();
+
+                        try {
+                            if (key.isValid() && key.isWritable()) c.flush();
+                            if (key.isValid() && key.isReadable()) c.read(this.readBuffer);
+                        } catch (IOException ioe) {
+                            c.close();
+                        } catch (RuntimeException e) {
+                            System.err.println(e.getMessage());
+                            c.close();
+                        }
+                    }
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * A connection to one client. Messages are received by its
+     * event loop and handled on a worker; messages may be sent
+     * from any thread.
+     */
+    private class Connection implements MessageSink {
+        private EventLoop loop;
+        private SocketChannel channel;
+        private SelectionKey key;
+        // Set once the client has logged in; guarded by inbox
+        private Server.ClientProxy proxy;
+        // Whether the client has logged in, so that frames up to the full size are read
+        private volatile boolean loggedIn = false;
+        private boolean magicSeen = false;
+        private ByteBuffer partial;
+        private volatile boolean closed = false;
+        // Messages read but not yet handled, guarded by itself
+        private ArrayDeque<Object> inbox = new ArrayDeque<Object>();
+        // Whether a worker is handling the inbox; guarded by inbox
+        private boolean handling = false;
+        // Whether the client is not read from until its inbox drains; guarded by writing
+        private boolean readPaused = false;
+
+        private ReentrantLock writing = new ReentrantLock();
+        private ByteArrayOutputStream frame = new ByteArrayOutputStream(256);
+        private DataOutputStream frameOut = new DataOutputStream(this.frame);
+        private ByteArrayOutputStream unflushed = new ByteArrayOutputStream(256);
+        private DataOutputStream unflushedOut = new DataOutputStream(this.unflushed);
+        private ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+        private int outboundBytes = 0;
+
+        private Connection(EventLoop loop, SocketChannel channel) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            // The server's answer to the binary protocol magic
+            this.unflushedOut.writeInt(BinaryChannel.MAGIC);
+        }
+
+        /** Read what has arrived and handle every complete frame. */
+        private void read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int n = this.channel.read(buffer);
+            if (n < 0) {
+                this.close();
+                return;
+            }
+            buffer.flip();
+
+            ByteBuffer in = buffer;
+            if (this.partial != null) {
+                if (this.partial.remaining() < buffer.remaining()) {
+                    // Kept with room for the whole frame once its length is known;
+                    // doubled otherwise, so a frame is never copied over and over
+                    ByteBuffer grown = ByteBuffer.allocate(Math.max(this.partial.position() + buffer.remaining(), 2 * this.partial.capacity()));
+                    this.partial.flip();
+                    grown.put(this.partial);
+                    this.partial = grown;
+                }
+                this.partial.put(buffer);
+                this.partial.flip();
+                in = this.partial;
+            }
+
+            if (!this.magicSeen) {
+                if (in.remaining() < 4) {
+                    this.keep(in);
+                    return;
+                }
+                if (in.getInt() != BinaryChannel.MAGIC) throw new IOException("Client does not speak the binary protocol");
+                this.magicSeen = true;
+            }
+
+            while (!this.closed && in.remaining() >= 4) {
+                int length = this.checkLength(in.getInt(in.position()));
+                if (in.remaining() < 4 + length) break;
+
+                byte[] bytes = new byte[length];
+                in.getInt();
+                in.get(bytes);
+                this.received(WireCodec.decode(new DataInputStream(new ByteArrayInputStream(bytes)), NioServer.this.server.getResolver()));
+            }
+
+            this.keep(in);
+        }
+
+        /**
+         * Keep the bytes of an incomplete frame until more arrive, in
+         * a buffer the whole frame fits in if its length has arrived.
+         */
+        private void keep(ByteBuffer in) throws IOException {
+            if (this.closed || !in.hasRemaining()) {
+                this.partial = null;
+                return;
+            }
+
+            int size = in.remaining();
+            if (this.magicSeen && in.remaining() >= 4) size = 4 + this.checkLength(in.getInt(in.position()));
+
+            if (in == this.partial && this.partial.capacity() >= size) {
+                this.partial.compact();
+            } else {
+                ByteBuffer rest = ByteBuffer.allocate(Math.max(size, 256));
+                rest.put(in);
+                this.partial = rest;
+            }
+        }
+
+        /**
+         * Check the length of a frame against the largest accepted,
+         * which is small until the client has logged in.
+         */
+        private int checkLength(int length) throws IOException {
+            int max = this.loggedIn ? BinaryChannel.MAX_FRAME_BYTES : BinaryChannel.MAX_HANDSHAKE_FRAME_BYTES;
+            if (length < 1 || length > max) throw new IOException("Bad frame length " + length);
+
+            return length;
+        }
+
+        /**
+         * Queue a message to be handled after those before it, and
+         * stop reading from a client that is too far ahead.
+         */
+        private void received(Object message) {
+            boolean start;
+            boolean full;
+
+            synchronized (this.inbox) {
+                this.inbox.add(message);
+                full = this.inbox.size() >= MAX_PENDING_MESSAGES;
+                start = !this.handling;
+                this.handling = true;
+            }
+            if (full) this.setReadPaused(true);
+            if (start) NioServer.this.workers.execute(this::handleInbox);
+        }
+
+        /** Handle the queued messages in order, on a worker. */
+        private void handleInbox() {
+            while (true) {
+                Object message;
+                boolean drained;
+
+                synchronized (this.inbox) {
+                    message = this.closed ? null : this.inbox.poll();
+                    if (message == null) {
+                        this.inbox.clear();
+                        this.handling = false;
+                        return;
+                    }
+                    drained = this.inbox.isEmpty();
+                }
+                if (drained) this.setReadPaused(false);
+
+                try {
+                    this.dispatch(message);
+                } catch (IOException ioe) {
+                    this.close();
+                } catch (RuntimeException e) {
+                    System.err.println(e.getMessage());
+                    this.close();
+                }
+            }
+        }
+
+        private void dispatch(Object message) throws IOException {
+            Server.ClientProxy proxy;
+            synchronized (this.inbox) {
+                proxy = this.proxy;
+            }
+
+            if (proxy == null) {
+                proxy = Server.ClientProxy.establish(message, this.channel.socket(), NioServer.this.server, this);
+                if (proxy == null) {
+                    this.close();
+                    return;
+                }
+                synchronized (this.inbox) {
+                    if (!this.closed) {
+                        this.proxy = proxy;
+                        this.loggedIn = true;
+                        return;
+                    }
+                }
+                // Closed while logging in, too late for close to see the proxy
+                proxy.disconnected();
+            } else if (!proxy.handle(message)) {
+                this.close();
+            }
+        }
+
+        private void setReadPaused(boolean paused) {
+            this.writing.lock();
+            try {
+                if (this.readPaused == paused) return;
+                this.readPaused = paused;
+                this.watch();
+            } finally {
+                this.writing.unlock();
+            }
+        }
+
+        /**
+         * Have the event loop watch for what the connection waits
+         * on. The caller holds the writing lock.
+         */
+        private void watch() {
+            int ops = (this.readPaused ? 0 : SelectionKey.OP_READ) | (this.outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            if (this.key != null && this.key.isValid() && this.key.interestOps() != ops) {
+                this.key.interestOps(ops);
+                this.loop.selector.wakeup();
+            }
+        }
+
+        public void send(Object message) throws IOException {
+            this.writing.lock();
+            try {
+                if (this.closed) throw new ClosedChannelException();
+
+                this.frame.reset();
+                WireCodec.encode(message, this.frameOut);
+                this.unflushedOut.writeInt(this.frame.size());
+                this.frame.writeTo(this.unflushedOut);
+            } finally {
+                this.writing.unlock();
+            }
+        }
+
+        /**
+         * Write as much as the socket takes without blocking, and
+         * have the event loop write the rest when it can. A client
+         * with more than {@link #MAX_OUTBOUND_BYTES} left to write
+         * is disconnected.
+         */
+        public void flush() throws IOException {
+            boolean tooSlow;
+
+            this.writing.lock();
+            try {
+                if (this.closed) throw new ClosedChannelException();
+
+                if (this.unflushed.size() > 0) {
+                    this.outbound.add(ByteBuffer.wrap(this.unflushed.toByteArray()));
+                    this.outboundBytes += this.unflushed.size();
+                    this.unflushed.reset();
+                }
+                while (!this.outbound.isEmpty()) {
+                    ByteBuffer head = this.outbound.peek();
+                    this.outboundBytes -= this.channel.write(head);
+                    if (head.hasRemaining()) break;
+                    this.outbound.poll();
+                }
+
+                this.watch();
+                tooSlow = this.outboundBytes > MAX_OUTBOUND_BYTES;
+            } finally {
+                this.writing.unlock();
+            }
+
+            if (tooSlow) {
+                // Callers only report the failure, so the connection is closed here
+                this.close();
+                throw new IOException("Client is not keeping up");
+            }
+        }
+
+        public long getRetainedBytes() {
+            this.writing.lock();
+            try {
+                ByteBuffer partial = this.partial;
+                return this.outboundBytes + this.unflushed.size() + (partial != null ? partial.capacity() : 0);
+            } finally {
+                this.writing.unlock();
+            }
+        }
+
+        public void close() {
+            this.writing.lock();
+            try {
+                if (this.closed) return;
+                this.closed = true;
+                // Nothing more will be written
+                this.outbound.clear();
+                this.outboundBytes = 0;
+                this.unflushed.reset();
+            } finally {
+                this.writing.unlock();
+            }
+
+            if (this.key != null) {
+                this.key.cancel();
+                // A registered channel is only really closed once its
+                // loop has deregistered it, which it does on waking
+                this.loop.selector.wakeup();
+            }
+            try {
+                this.channel.close();
+            } catch (IOException ioe) {
+                // Already gone
+            }
+            Server.ClientProxy proxy;
+            synchronized (this.inbox) {
+                proxy = this.proxy;
+            }
+            if (proxy != null) proxy.disconnected();
+        }
+    }
+}
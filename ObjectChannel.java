@@ -0,0 +1,132 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * A message channel using Java object serialization, the
+ * protocol spoken by clients that do not negotiate the
+ * binary protocol.
+ *
+ * An object stream remembers every object written to it, so
+ * that writing one again only sends a reference to it. Left
+ * alone, that keeps everything ever sent on a connection
+ * reachable, and sends an account that has since been
+ * renamed as the stale instance the peer already has. The
+ * channel therefore resets its stream after a number of
+ * messages or bytes, which makes both ends forget what was
+ * sent before. By default it resets after every message,
+ * so objects are only shared within one message; the
+ * system properties <code>twitterish.resetMessages</code> and
+ * <code>twitterish.resetBytes</code> let more be shared.
+ *
+ * @version %I%, %G%
+ */
+public class ObjectChannel implements MessageChannel {
+    /** Default number of messages sent between resets. */
+    public static final int DEFAULT_RESET_MESSAGES = Integer.getInteger("twitterish.resetMessages", 1);
+    /** Default number of bytes sent between resets. */
+    public static final int DEFAULT_RESET_BYTES = Integer.getInteger("twitterish.resetBytes", 256 * 1024);
+
+    /** Counts the bytes written through it. */
+    private static class Counting extends FilterOutputStream {
+        private long count = 0;
+
+        private Counting(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            ++this.count;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+
+    private InputStream in;
+    private ObjectInputStream incoming;
+    private ObjectOutputStream outgoing;
+    private Counting counted;
+    private int resetMessages;
+    private int resetBytes;
+    private int messagesSinceReset = 0;
+    private long countAtReset = 0;
+    private long resets = 0;
+
+    /**
+     * Open a channel that resets its stream as often as the
+     * defaults say.
+     *
+     * @param in the stream to receive messages from
+     * @param out the stream to send messages to
+     */
+    public ObjectChannel(InputStream in, OutputStream out) throws IOException {
+        this(in, out, DEFAULT_RESET_MESSAGES, DEFAULT_RESET_BYTES);
+    }
+
+    /**
+     * Open a channel. The stream header is written at once, but
+     * the peer's header is only read with the first message, so
+     * that both ends may open their channels in any order.
+     *
+     * @param in the stream to receive messages from
+     * @param out the stream to send messages to
+     * @param resetMessages the most messages sent between resets
+     * @param resetBytes the bytes sent after which the stream is reset
+     * before the next message
+     */
+    public ObjectChannel(InputStream in, OutputStream out, int resetMessages, int resetBytes) throws IOException {
+        this.in = in;
+        this.counted = new Counting(out);
+        this.outgoing = new ObjectOutputStream(this.counted);
+        this.resetMessages = Math.max(resetMessages, 1);
+        this.resetBytes = Math.max(resetBytes, 1);
+    }
+
+    public void send(Object message) throws IOException {
+        if (this.messagesSinceReset >= this.resetMessages || this.counted.count - this.countAtReset >= this.resetBytes) {
+            this.outgoing.reset();
+            this.messagesSinceReset = 0;
+            this.countAtReset = this.counted.count;
+            ++this.resets;
+        }
+
+        this.outgoing.writeObject(message);
+        ++this.messagesSinceReset;
+    }
+
+    public void flush() throws IOException {
+        this.outgoing.flush();
+    }
+
+    public Object receive() throws IOException, ClassNotFoundException {
+        if (this.incoming == null) this.incoming = new ObjectInputStream(this.in);
+
+        return this.incoming.readObject();
+    }
+
+    public void close() throws IOException {
+        this.outgoing.close();
+        if (this.incoming != null) this.incoming.close();
+        else this.in.close();
+    }
+
+    /**
+     * The bytes sent since the last reset, which stands for the
+     * objects the stream still remembers.
+     */
+    public long getRetainedBytes() {
+        return this.counted.count - this.countAtReset;
+    }
+
+    /** Get the number of times the stream has been reset. */
+    public long getResets() {
+        return this.resets;
+    }
+}
@@ -1,8 +1,29 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
-/** Implementation of a post made by user. */
+/**
+ * Implementation of a post made by user.
+ *
+ * Post ids were ints when the class was first released. So
+ * that clients from then can still read posts, a post is
+ * serialized with its id cut down to an int under the old
+ * name, and in full under another, which newer readers
+ * prefer.
+ */
 public class Post implements Serializable {
-    private int globalPostId;
+    private static final long serialVersionUID = -7213602912653346034L;
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("globalPostId", int.class),
+        new ObjectStreamField("poster", Account.class),
+        new ObjectStreamField("content", String.class),
+        new ObjectStreamField("id", long.class)
+    };
+    private static final PostIdGenerator ids = new PostIdGenerator(Integer.getInteger("twitterish.node", 0));
+
+    private long globalPostId;
     private Account poster;
     private String content;
 
@@ -11,21 +32,72 @@ public class Post implements Serializable {
         return this.poster;
     }
 
+    /**
+     * Get the globally unique id of the post. Ids are ordered
+     * by the time the post was made.
+     */
+    public long getGlobalPostId() {
+        return this.globalPostId;
+    }
+
+    /**
+     * Allocate a new globally unique post id. Safe to call
+     * from any thread without locking. The node part of the
+     * id is taken from the <code>twitterish.node</code>
+     * system property.
+     *
+     * @see PostIdGenerator
+     */
+    public static long nextGlobalPostId() {
+        return ids.next();
+    }
+
     /**
      * Constructor
      *
-     * @param globalPostId
+     * @param globalPostId Unique id of the post, see {@link #nextGlobalPostId}.
      * @param poster Account of user that made the post.
      * @param content Content of post.
      */
-    public Post(int globalPostId, Account poster, String content) {
+    public Post(long globalPostId, Account poster, String content) {
         this.globalPostId = globalPostId;
         this.poster       = poster;
         this.content      = content;
     }
 
+    /** Get the content of the post. */
+    public String getContent() {
+        return this.content;
+    }
+
     /** Get string represantion of post to display to user. */
     public String render() {
         return "{" + this.poster.getName() + "} says:\n" + this.content + "\n";
     }
+
+    /**
+     * Render the post to display to user straight into an
+     * Appendable, without making a string of it first.
+     *
+     * @param out Where to render the post.
+     */
+    public void render(Appendable out) throws IOException {
+        out.append('{').append(this.poster.getName()).append("} says:\n").append(this.content).append('\n');
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("globalPostId", (int) this.globalPostId);
+        fields.put("poster", this.poster);
+        fields.put("content", this.content);
+        fields.put("id", this.globalPostId);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.globalPostId = fields.defaulted("id") ? fields.get("globalPostId", 0) : fields.get("id", 0L);
+        this.poster = (Account) fields.get("poster", null);
+        this.content = (String) fields.get("content", null);
+    }
 }
@@ -0,0 +1,77 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates globally unique, time-ordered 64-bit post ids
+ * without taking a lock. An id is made of, from the most
+ * significant bit:
+ *
+ * <ul>
+ * <li>1 unused sign bit, always 0</li>
+ * <li>41 bits of milliseconds since {@link #EPOCH}</li>
+ * <li>10 bits of node id, so that servers can allocate ids independently</li>
+ * <li>12 bits of sequence within the same millisecond</li>
+ * </ul>
+ *
+ * Ids from one generator are strictly increasing. If more
+ * than 4096 ids are asked for in one millisecond, or the
+ * clock moves backwards, the generator keeps counting from
+ * its last timestamp rather than waiting for the clock.
+ *
+ * @version %I%, %G%
+ */
+public class PostIdGenerator {
+    /** The start of time for ids: 2017-01-01T00:00:00Z. */
+    public static final long EPOCH = 1483228800000L;
+
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+
+    /** The largest node id a generator can have. */
+    public static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+
+    private final long node;
+    private final AtomicLong last = new AtomicLong(0);
+
+    /**
+     * Create a generator.
+     *
+     * @param nodeId the id of this server, between 0 and {@link #MAX_NODE_ID}
+     */
+    public PostIdGenerator(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) throw new IllegalArgumentException("Node id out of range: " + nodeId);
+        this.node = (long) nodeId << SEQUENCE_BITS;
+    }
+
+    /**
+     * Allocate the next id.
+     *
+     * @return an id greater than every id this generator has returned before
+     */
+    public long next() {
+        while (true) {
+            long last = this.last.get();
+            long now  = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+            // The timestamp and sequence are kept together, so
+            // bumping the sequence past its 12 bits carries into
+            // the next millisecond.
+            long next = Math.max(now, last + 1);
+
+            if (this.last.compareAndSet(last, next)) {
+                long time = next >>> SEQUENCE_BITS;
+                long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+
+                return (time << (NODE_BITS + SEQUENCE_BITS)) | this.node | sequence;
+            }
+        }
+    }
+
+    /** Get the milliseconds since the Unix epoch at which an id was allocated. */
+    public static long getTimestamp(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+
+    /** Get the id of the node that allocated an id. */
+    public static int getNodeId(long id) {
+        return (int) (id >>> SEQUENCE_BITS) & MAX_NODE_ID;
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The append-only log of every post made on the Server.
+ * Posts are addressed by sequence numbers, starting at 0
+ * and increasing by one per post, which stay valid for
+ * the lifetime of the log.
+ *
+ * Posts are stored in fixed-size array chunks, so any
+ * post is found in constant time from its sequence number.
+ * Appends are serialized by a lock, but readers never
+ * take a lock: a post is published by the volatile write
+ * of the log's size, after it has been stored.
+ *
+ * @version %I%, %G%
+ */
+public class PostLog {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile Post[][] chunks = new Post[16][];
+    private volatile long size = 0;
+    private ReentrantLock appending = new ReentrantLock();
+
+    /**
+     * Append a post to the end of the log.
+     *
+     * @param p the post to append
+     * @return the sequence number of the post
+     */
+    public long append(Post p) {
+        this.appending.lock();
+        try {
+            long seq = this.size;
+            int chunk = (int) (seq >>> CHUNK_BITS);
+            Post[][] chunks = this.chunks;
+
+            if (chunk == chunks.length) {
+                Post[][] grown = new Post[chunks.length * 2][];
+                System.arraycopy(chunks, 0, grown, 0, chunks.length);
+                this.chunks = chunks = grown;
+            }
+            if (chunks[chunk] == null) chunks[chunk] = new Post[CHUNK_SIZE];
+
+            chunks[chunk][(int) seq & CHUNK_MASK] = p;
+            this.size = seq + 1;
+
+            return seq;
+        } finally {
+            this.appending.unlock();
+        }
+    }
+
+    /**
+     * Get the number of posts in the log, which is also the
+     * sequence number the next post will be given.
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * Get the post with a given sequence number.
+     *
+     * @param seq the sequence number of the post
+     * @return the post
+     * @throws IndexOutOfBoundsException if no post has that sequence number
+     */
+    public Post get(long seq) {
+        if (seq < 0 || seq >= this.size) throw new IndexOutOfBoundsException("No post with sequence number " + seq);
+
+        return this.chunks[(int) (seq >>> CHUNK_BITS)][(int) seq & CHUNK_MASK];
+    }
+
+    /**
+     * Get the posts in a range of sequence numbers, oldest first.
+     * The range is clamped to the posts currently in the log.
+     *
+     * @param from the sequence number of the first post, inclusive
+     * @param to the sequence number of the last post, exclusive
+     * @return the posts in the range
+     */
+    public List<Post> read(long from, long to) {
+        long size = this.size;
+        Post[][] chunks = this.chunks;
+
+        from = Math.max(from, 0);
+        to   = Math.min(to, size);
+        if (from >= to) return new ArrayList<Post>();
+
+        List<Post> result = new ArrayList<Post>((int) (to - from));
+
+        for (long seq = from; seq < to; ) {
+            Post[] chunk = chunks[(int) (seq >>> CHUNK_BITS)];
+
+            for (int i = (int) seq & CHUNK_MASK; i < CHUNK_SIZE && seq < to; ++i, ++seq) {
+                result.add(chunk[i]);
+            }
+        }
+
+        return result;
+    }
+}
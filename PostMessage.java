@@ -1,5 +1,3 @@
-import java.io.Serializable;
-
 /**
  * A message used by a Client to notify the 
  * Client Proxy that the logged in user has  
@@ -9,7 +7,9 @@ import java.io.Serializable;
  * @version %I%, %G%
  */
 
-public class PostMessage implements Serializable {
+public class PostMessage extends Message {
+    private static final long serialVersionUID = -3499115250552643181L;
+
     private String msg;
 
     /**
@@ -0,0 +1,39 @@
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * A message pushed by the Client Proxy to a subscribed Client
+ * when friends have come online or gone offline. Changes are
+ * gathered for a while and sent together, so a friend who
+ * reconnects at once may not show up at all.
+ *
+ * @version %I%, %G%
+ */
+public class PresenceUpdate extends Message {
+    private static final long serialVersionUID = 1L;
+
+    // Filled in by the Server as changes are gathered
+    final Set<String> online;
+    final Set<String> offline;
+
+    /**
+     * Constructor
+     *
+     * @param online the user ids of the friends now online
+     * @param offline the user ids of the friends now offline
+     */
+    public PresenceUpdate(Set<String> online, Set<String> offline) {
+        this.online = online;
+        this.offline = offline;
+    }
+
+    /** Get the user ids of the friends now online. */
+    public Set<String> getOnline() {
+        return Collections.unmodifiableSet(this.online);
+    }
+
+    /** Get the user ids of the friends now offline. */
+    public Set<String> getOffline() {
+        return Collections.unmodifiableSet(this.offline);
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads Client Proxies run on, either platform
+ * threads or virtual threads. Virtual threads are looked up
+ * reflectively, so the server still builds and runs on a
+ * runtime without them; there only platform threads can be
+ * had.
+ *
+ * @version %I%, %G%
+ */
+public class ProxyThreads {
+    /** How a Client Proxy's thread is made. */
+    public enum Mode { PLATFORM, VIRTUAL }
+
+    /**
+     * Get a factory for threads of a given mode.
+     *
+     * @param mode the kind of thread to make
+     * @return the factory
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    public static ThreadFactory factory(Mode mode) {
+        return mode == Mode.VIRTUAL ? virtual() : platform();
+    }
+
+    /** Get a factory for daemon platform threads. */
+    public static ThreadFactory platform() {
+        final AtomicInteger count = new AtomicInteger();
+
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "client-proxy-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Get a factory for virtual threads.
+     *
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    public static ThreadFactory virtual() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "client-proxy-", 1L);
+
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException roe) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later (running " + System.getProperty("java.version") + ")", roe);
+        }
+    }
+
+    /** Check whether the runtime has virtual threads. */
+    public static boolean isVirtualAvailable() {
+        try {
+            virtual();
+            return true;
+        } catch (UnsupportedOperationException uoe) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Changes pushed by the Client Proxy to a Client that has
+ * subscribed, without being asked for with a SyncRequest.
+ * It holds the same data as a SyncResponse; bursts of
+ * changes are coalesced into a single push.
+ *
+ * @version %I%, %G%
+ * @see Subscribe
+ */
+public class PushUpdate extends SyncResponse {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Initialize a new push.
+     *
+     * @param users the users added or renamed, or every user if <code>fullDirectory</code>
+     * @param removedUsers the user ids of the users removed
+     * @param directoryVersion the directory version the push brings the client up to
+     * @param fullDirectory whether <code>users</code> is the whole directory
+     * @param posts new posts from the client's friends
+     */
+    public PushUpdate(Set<Account> users, Set<String> removedUsers, long directoryVersion, boolean fullDirectory, List<Post> posts) {
+        super(users, removedUsers, directoryVersion, fullDirectory, posts);
+    }
+}
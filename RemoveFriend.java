@@ -1,7 +1,7 @@
-import java.io.Serializable;
-
 /** Remove friend event. */
-public class RemoveFriend implements Serializable {
+public class RemoveFriend extends Message {
+    private static final long serialVersionUID = -3049775359952010652L;
+
     private Account friendToBeRemoved;
 
     /**
@@ -0,0 +1,30 @@
+/**
+ * A message used by a Client, in place of a Login, to pick
+ * up a session it was given a {@link SessionToken} for. The
+ * password is not checked again, and the Client Proxy goes on
+ * from the directory version the client was last sent, with
+ * its subscription to pushes as it was. The Client Proxy
+ * answers with the Account and the token, as for a Login, or
+ * with <code>false</code> if the session has ended.
+ *
+ * @version %I%, %G%
+ */
+public class Resume extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private String token;
+
+    /**
+     * Constructor
+     *
+     * @param token the token of the session to resume
+     */
+    public Resume(String token) {
+        this.token = token;
+    }
+
+    /** Get the token of the session to resume. */
+    public String getToken() {
+        return this.token;
+    }
+}
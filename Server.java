@@ -1,6 +1,16 @@
 import java.util.*;
 import java.io.*;
 import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The backend of the server system. It contains
@@ -8,12 +18,59 @@ import java.net.*;
  * Client Proxy instances, i.e. the users
  * known by the server, the logins and the posts.
  *
+ * The server takes no lock of its own. Accounts and
+ * logins are kept in a concurrent registry, posts in a
+ * log with a single writer and lock-free readers, and
+ * each account's timeline guards itself.
+ *
+ * If the server has a {@link Journal}, every mutation is
+ * recorded in it before it is applied, so that the state
+ * of the server can be recovered after a restart.
+ * Snapshots of the whole state are taken in the background,
+ * so that recovery only replays the end of the journal.
+ *
+ * Client Proxies may subscribe to be told when a new post
+ * reaches their account's timeline or the directory of
+ * accounts changes, so that they can push the change to
+ * their client.
+ *
+ * The server knows which accounts are online, from how
+ * many devices, and publishes friends coming online and
+ * going offline to subscribed clients once a second.
+ * Logging out ends a session but keeps the account.
+ *
  * @version %H%, %I%
  */
 public class Server {
-    private Set<Account> knownUsers = new TreeSet<Account>();
-    private Set<Login> knownLogins = new TreeSet<Login>();
-    private List<Post> posts = new LinkedList<Post>();
+    /** How long changes to presence are gathered before they are published. */
+    public static final long PRESENCE_INTERVAL_MILLIS = 1000;
+
+    private AccountRegistry registry = new AccountRegistry();
+    private FriendGraph friends = new FriendGraph();
+    private FriendSuggester suggester = new FriendSuggester(this.friends);
+    private PostLog posts = new PostLog();
+    private Map<String, Timeline> timelines = new ConcurrentHashMap<String, Timeline>();
+    private Journal journal;
+    // Held shared by every journaled mutation, from journaling it to
+    // applying it, so that a snapshot can briefly hold it exclusively
+    // to find a journal position no mutation is halfway across.
+    private ReadWriteLock mutations = new ReentrantReadWriteLock();
+    // The effects of the mutations of a thread's batch, held back until
+    // their journal records are durable; unset outside a batch
+    private ThreadLocal<List<Runnable>> batched = new ThreadLocal<List<Runnable>>();
+    private ScheduledExecutorService snapshots;
+    private Map<String, Set<ClientProxy>> subscribers = new ConcurrentHashMap<String, Set<ClientProxy>>();
+    private SessionRegistry online = new SessionRegistry();
+    private SessionTokens sessions = new SessionTokens();
+    private ScheduledExecutorService pushes = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "pusher");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private ThreadFactory proxyThreads = ProxyThreads.platform();
+    private HandlerRegistry handlers = ClientProxy.defaultHandlers();
 
     /**
      * The main function of the server. Begin by trying to
@@ -22,30 +79,387 @@ public class Server {
      *
      * @param args the port for the socket will be specified
      * at the first of the arguments, defaults to 8080 if
-     * there are none
+     * there are none. <code>--data &lt;dir&gt;</code> makes the server
+     * persistent, journaling to the directory, and
+     * <code>--durability sync|batch|async</code> chooses when the
+     * journal is forced to disk, defaults to batch.
+     * <code>--snapshot-interval &lt;seconds&gt;</code> sets how often
+     * a snapshot is taken of a persistent server, defaults to 60.
+     * <code>--engine nio</code> serves binary protocol clients from
+     * <code>--event-loops &lt;n&gt;</code> selector threads, defaults to
+     * one per core, instead of one thread per client, handling
+     * their messages on <code>--workers &lt;n&gt;</code> threads,
+     * defaults to 32.
+     * <code>--threads platform|virtual</code> chooses the kind of
+     * thread each client's proxy runs on with the default engine,
+     * defaults to platform. New connections log in on
+     * <code>--handshake-workers &lt;n&gt;</code> threads, defaults to 32,
+     * with at most <code>--max-pending-handshakes &lt;n&gt;</code> waiting,
+     * defaults to 1024, each within <code>--handshake-timeout &lt;ms&gt;</code>,
+     * defaults to 5000. <code>--max-concurrent-syncs &lt;n&gt;</code>
+     * limits how many syncs are answered at once, defaults to no limit.
+     * <code>--stats-interval &lt;seconds&gt;</code> prints the message and
+     * connection statistics that often, as well as on shutdown
      */
     public static void main(String[] args) {
+        int port = 8080;
+        File data = null;
+        WriteAheadLog.Durability durability = WriteAheadLog.Durability.BATCH;
+        long snapshotInterval = 60;
+        boolean nio = false;
+        int eventLoops = Runtime.getRuntime().availableProcessors();
+        int workers = NioServer.DEFAULT_WORKERS;
+        ProxyThreads.Mode threads = ProxyThreads.Mode.PLATFORM;
+        int handshakeWorkers = HandshakeStage.DEFAULT_WORKERS;
+        int maxPendingHandshakes = HandshakeStage.DEFAULT_MAX_PENDING;
+        int handshakeTimeout = HandshakeStage.DEFAULT_TIMEOUT_MILLIS;
+        int maxConcurrentSyncs = 0;
+        long statsInterval = 0;
+
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("--data") && i + 1 < args.length) {
+                data = new File(args[++i]);
+            } else if (args[i].equals("--durability") && i + 1 < args.length) {
+                durability = WriteAheadLog.Durability.valueOf(args[++i].toUpperCase());
+            } else if (args[i].equals("--snapshot-interval") && i + 1 < args.length) {
+                snapshotInterval = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--engine") && i + 1 < args.length) {
+                nio = args[++i].equalsIgnoreCase("nio");
+            } else if (args[i].equals("--event-loops") && i + 1 < args.length) {
+                eventLoops = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--workers") && i + 1 < args.length) {
+                workers = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = ProxyThreads.Mode.valueOf(args[++i].toUpperCase());
+            } else if (args[i].equals("--handshake-workers") && i + 1 < args.length) {
+                handshakeWorkers = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--max-pending-handshakes") && i + 1 < args.length) {
+                maxPendingHandshakes = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--handshake-timeout") && i + 1 < args.length) {
+                handshakeTimeout = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--max-concurrent-syncs") && i + 1 < args.length) {
+                maxConcurrentSyncs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--stats-interval") && i + 1 < args.length) {
+                statsInterval = Long.parseLong(args[++i]);
+            } else {
+                port = Integer.parseInt(args[i]);
+            }
+        }
+
+        if (threads == ProxyThreads.Mode.VIRTUAL && !ProxyThreads.isVirtualAvailable()) {
+            System.err.println("!! Virtual threads are not available on Java " + System.getProperty("java.version"));
+            return;
+        }
+
         try {
-            ServerSocket socket = new ServerSocket(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
             Server server = new Server();
+            server.setProxyThreads(ProxyThreads.factory(threads));
+            server.getHandlers().setLimit(SyncRequest.class, maxConcurrentSyncs);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.print(server.report())));
+            server.pushes.scheduleAtFixedRate(server.sessions::purgeExpired, 1, 1, TimeUnit.HOURS);
+            server.pushes.scheduleAtFixedRate(server::publishPresence, PRESENCE_INTERVAL_MILLIS, PRESENCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            if (statsInterval > 0) {
+                server.pushes.scheduleAtFixedRate(() -> System.out.print(server.report()), statsInterval, statsInterval, TimeUnit.SECONDS);
+            }
+            if (data != null) {
+                long began = System.nanoTime();
+                server.openJournal(new Journal(new WriteAheadLog(data, durability)));
+                server.startSnapshots(snapshotInterval);
+                System.out.println("!! Server recovered from " + data + " in " + (System.nanoTime() - began) / 1000000 + " ms (" + durability + " durability)");
+            }
+
+            if (nio) {
+                new NioServer(server, port, eventLoops, workers).serve();
+                return;
+            }
+
+            ServerSocket socket = new ServerSocket(port, 1024);
+            HandshakeStage handshakes = new HandshakeStage(server, handshakeWorkers, maxPendingHandshakes, handshakeTimeout);
+            System.out.println("!! Server listening for connections: " + socket.getInetAddress() + ":" + socket.getLocalPort());
 
+            // The accept loop only accepts; logging in is left to the handshake stage
             while (true) {
-                System.out.println("!! Server listening for connections: " + socket.getInetAddress() + ":" + socket.getLocalPort());
+                handshakes.awaitCapacity();
                 Socket clientConnection = socket.accept();
                 System.out.println("!! Server got a connection from: " + clientConnection.getInetAddress() + ":" + clientConnection.getPort());
+                handshakes.submit(clientConnection);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * Recover the state recorded in a journal's directory, and then
+     * record every further mutation in the journal. The newest
+     * readable snapshot is loaded, and only the journal after it is
+     * replayed. Must be called on an empty server, before any client
+     * connects.
+     *
+     * @param journal the journal to recover from and append to
+     */
+    public void openJournal(Journal journal) throws IOException {
+        long from = 0;
+
+        for (File snapshot : ServerSnapshot.list(journal.getLog().getDirectory())) {
+            try {
+                from = ServerSnapshot.load(snapshot, this);
+                break;
+            } catch (IOException | BufferUnderflowException e) {
+                // Fall back to an older snapshot, on an empty server
+                System.err.println("!! Skipping snapshot " + snapshot + ": " + e);
+                this.resetState();
+            }
+        }
+
+        journal.replay(from, this);
+        this.journal = journal;
+    }
+
+    /**
+     * Forget every account, friendship and post, along with
+     * anything derived from them, as a snapshot that failed to
+     * load may have restored some of them.
+     */
+    private void resetState() {
+        this.registry = new AccountRegistry();
+        this.friends = new FriendGraph();
+        this.suggester = new FriendSuggester(this.friends);
+        this.posts = new PostLog();
+        this.timelines.clear();
+    }
+
+    /**
+     * Take a snapshot of the server every so often, on a
+     * background thread. Requires a journal.
+     *
+     * @param intervalSeconds the time between snapshots
+     */
+    public void startSnapshots(long intervalSeconds) {
+        this.snapshots = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "snapshotter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.snapshots.scheduleWithFixedDelay(new Runnable() {
+            private long lastLsn = -1;
+
+            public void run() {
                 try {
-                    ClientProxy.attemptEstablishConnection(clientConnection, server);
-                } catch (RuntimeException e) {
-                    System.err.println(e.getMessage());
+                    if (Server.this.journal.getLog().getEndLsn() != this.lastLsn) {
+                        this.lastLsn = Server.this.takeSnapshot();
+                    }
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
                 }
             }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Write a snapshot of the server to its journal's directory,
+     * and delete the journal segments and snapshots it supersedes.
+     * Mutations are held back while the state is copied, so that the
+     * copy holds exactly the mutations before the journal position,
+     * but not while the snapshot is written.
+     *
+     * @return the journal LSN the snapshot is consistent with
+     */
+    public long takeSnapshot() throws IOException {
+        long lsn;
+        long postCount;
+        List<Account> accounts;
+        List<Login> logins;
+        Map<String, String[]> friends = new HashMap<String, String[]>();
+        Map<String, String[]> ignored = new HashMap<String, String[]>();
+        Map<String, List<Post>> timelines = new HashMap<String, List<Post>>();
+
+        // Replaying a mutation the copy already holds is not harmless: a
+        // post replayed after its poster's later friendships would be
+        // fanned out to friends made after it
+        this.mutations.writeLock().lock();
+        try {
+            lsn = this.journal.getLog().getEndLsn();
+            postCount = this.posts.size();
+
+            accounts = new ArrayList<Account>(this.registry.getAccounts());
+            logins = new ArrayList<Login>(this.registry.getLogins());
+            for (Account a : accounts) {
+                friends.put(a.getUserId(), this.getFriendsOf(a.getUserId()));
+                String[] ignoring = this.getIgnoredBy(a.getUserId());
+                if (ignoring.length > 0) ignored.put(a.getUserId(), ignoring);
+            }
+            for (Map.Entry<String, Timeline> e : this.timelines.entrySet()) {
+                List<Post> undelivered = e.getValue().peek();
+                if (!undelivered.isEmpty()) timelines.put(e.getKey(), undelivered);
+            }
+        } finally {
+            this.mutations.writeLock().unlock();
+        }
+
+        // The post log is append-only, so its first posts can be read after
+        List<Post> posts = this.posts.read(0, postCount);
+
+        ServerSnapshot.Image image = new ServerSnapshot.Image(lsn, accounts, logins, friends, ignored, posts, timelines);
+        File directory = this.journal.getLog().getDirectory();
+        File file = ServerSnapshot.write(directory, image);
+
+        this.journal.getLog().sync();
+        this.journal.getLog().truncateBefore(lsn);
+        ServerSnapshot.deleteOlderThan(directory, file);
+
+        return lsn;
+    }
+
+    /**
+     * Append a post to the post log as it was recovered from a
+     * snapshot, without journaling it or delivering it again.
+     */
+    void restorePost(Post p) {
+        this.posts.append(p);
+    }
+
+    /**
+     * Make two accounts friends as they were recovered from a
+     * snapshot, without journaling it.
+     */
+    void restoreFriendship(String a, String b) {
+        if (this.friends.add(a, b)) this.suggester.friendshipChanged(a, b);
+    }
+
+    /**
+     * Have an account ignore a friend as it was recovered from a
+     * snapshot, without journaling it.
+     */
+    void restoreIgnore(String a, String b) {
+        this.friends.ignore(a, b);
+    }
+
+    /**
+     * Wrap a failure to journal a mutation. The mutation is
+     * not applied, since it would be lost on a restart.
+     */
+    private static UncheckedIOException journalFailure(IOException ioe) {
+        return new UncheckedIOException("Could not journal mutation", ioe);
+    }
+
+    /**
+     * Start a batch of mutations on the calling thread, whose journal
+     * records are forced together by {@link #endBatch}. Until then,
+     * the mutations are journaled but not applied, so no client can
+     * see one that a crash would lose, and no snapshot is taken.
+     *
+     * @throws IllegalStateException if the thread is in a batch already
+     */
+    void beginBatch() {
+        if (this.journal == null) return;
+        if (this.batched.get() != null) throw new IllegalStateException("Already in a batch");
+
+        this.mutations.readLock().lock();
+        this.batched.set(new ArrayList<Runnable>());
+        this.journal.beginBatch();
+    }
+
+    /**
+     * End the calling thread's batch, waiting until the journal
+     * records of its mutations are durable, and then applying the
+     * mutations in the order they were made.
+     */
+    void endBatch() {
+        List<Runnable> effects = this.batched.get();
+        if (effects == null) return;
+
+        this.batched.remove();
+        try {
+            this.journal.endBatch();
+            for (Runnable effect : effects) effect.run();
         } catch (IOException ioe) {
-            ioe.printStackTrace();
-        } catch (ClassNotFoundException cnfe) {
-            cnfe.printStackTrace();
+            throw journalFailure(ioe);
+        } finally {
+            this.mutations.readLock().unlock();
+        }
+    }
+
+    /**
+     * Apply a journaled mutation, unless the calling thread is in a
+     * batch, which applies it once its journal record is durable.
+     */
+    private void apply(Runnable effect) {
+        List<Runnable> effects = this.batched.get();
+
+        if (effects != null) {
+            effects.add(effect);
+        } else {
+            effect.run();
         }
     }
 
+    /**
+     * Set how the threads Client Proxies run on are made.
+     *
+     * @param factory the factory for proxy threads
+     * @see ProxyThreads
+     */
+    public void setProxyThreads(ThreadFactory factory) {
+        this.proxyThreads = factory;
+    }
+
+    /**
+     * Get the handlers for messages from clients, with their
+     * statistics. Handlers may be replaced or limited at any time.
+     */
+    public HandlerRegistry getHandlers() {
+        return this.handlers;
+    }
+
+    /** Get the number of clients connected. */
+    public int getConnectionCount() {
+        return this.online.getConnectionCount();
+    }
+
+    /**
+     * Get an estimate of the heap held for the connections to
+     * clients, beyond a fixed overhead per connection.
+     *
+     * @see MessageSink#getRetainedBytes
+     */
+    public long getRetainedBytes() {
+        long total = 0;
+        for (ClientProxy proxy : this.online.getAll()) total += proxy.getRetainedBytes();
+
+        return total;
+    }
+
+    /**
+     * Get the statistics of the handlers for each type of message,
+     * followed by those of the connections.
+     */
+    public String report() {
+        long largest = 0;
+        for (ClientProxy proxy : this.online.getAll()) largest = Math.max(largest, proxy.getRetainedBytes());
+
+        return this.handlers.report()
+            + String.format("%d accounts online, %d connections, %d bytes retained, %d at most%n",
+                            this.online.getOnlineCount(), this.getConnectionCount(), this.getRetainedBytes(), largest);
+    }
+
+    /**
+     * Get a resolver for the user ids in messages from clients,
+     * which finds the server's own account for each id.
+     */
+    AccountResolver getResolver() {
+        return new AccountResolver() {
+            public Account resolve(String userId) {
+                Account known = Server.this.getAccountFor(userId);
+                return known != null ? known : new Account(userId);
+            }
+        };
+    }
+
     /**
      * Get the account associated with a specified Id
      *
@@ -53,10 +467,7 @@ public class Server {
      * @return an account with the specified userId if one exists, else <code>null</code>
      */
     public Account getAccountFor(String userId) {
-        for (Account a : this.knownUsers)
-            if (a.getUserId().equals(userId)) return a;
-
-        return null;
+        return this.registry.getAccount(userId);
     }
 
     /**
@@ -66,88 +477,410 @@ public class Server {
      * @return a login for an account with the specified Id if one exists, else <code>null</code>
      */
     public Login getLoginFor(String userId) {
-	for (Login l : this.knownLogins){
-	    if (l.getAccount().getUserId().equals(userId)) return l;}
-
-	return null;
+	return this.registry.getLogin(userId);
     }
 
     /**
      * Add an account to the server
      */
-    public synchronized void addAccount(Account a) {
-        this.knownUsers.add(a);
+    public void addAccount(Account a) {
+        this.mutations.readLock().lock();
+        try {
+            if (this.journal != null) this.journal.addAccount(a);
+            this.apply(() -> {
+                this.registry.addAccount(a);
+                this.notifyAllSubscribers();
+            });
+        } catch (IOException ioe) {
+            throw journalFailure(ioe);
+        } finally {
+            this.mutations.readLock().unlock();
+        }
     }
 
     /**
      * Add an account's login on the server
      */
-    public synchronized void addLogin(Login l) {
-	this.knownLogins.add(l);
+    public void addLogin(Login l) {
+        this.mutations.readLock().lock();
+        try {
+            if (this.journal != null) this.journal.addLogin(l);
+            this.apply(() -> this.registry.addLogin(l));
+        } catch (IOException ioe) {
+            throw journalFailure(ioe);
+        } finally {
+            this.mutations.readLock().unlock();
+        }
     }
 
     /**
      * Remove an account from the server
      */
-    public synchronized void removeAccount(Account a) {
-        this.knownUsers.remove(a);
+    public void removeAccount(Account a) {
+        this.mutations.readLock().lock();
+        try {
+            if (this.journal != null) this.journal.removeAccount(a);
+            this.apply(() -> {
+                this.registry.removeAccount(a);
+                this.notifyAllSubscribers();
+            });
+        } catch (IOException ioe) {
+            throw journalFailure(ioe);
+        } finally {
+            this.mutations.readLock().unlock();
+        }
     }
 
     /**
      * Remove an accounts login from the server
      */
-    public synchronized void removeLogin(Login l) {
-	this.knownLogins.remove(l);
+    public void removeLogin(Login l) {
+        this.mutations.readLock().lock();
+        try {
+            if (this.journal != null) this.journal.removeLogin(l);
+            this.apply(() -> this.registry.removeLogin(l));
+        } catch (IOException ioe) {
+            throw journalFailure(ioe);
+        } finally {
+            this.mutations.readLock().unlock();
+        }
     }
 
     /**
-     * Get a set of all known accounts stored on the server
+     * Change the name and password of a known account. The
+     * account keeps its identity, and with it its friends.
+     *
+     * @param l a login holding the account's user id, its new name and its new password
      */
-    public synchronized Set<Account> getAccounts() {
-        return new TreeSet<Account>(this.knownUsers);
+    public void updateAccount(Login l) {
+        Account known = this.getAccountFor(l.getAccount().getUserId());
+        if (known == null) return;
+
+        this.mutations.readLock().lock();
+        try {
+            if (this.journal != null) this.journal.updateAccount(l);
+            this.apply(() -> {
+                known.setName(l.getAccount().getName());
+                this.registry.renamed(known);
+                this.registry.addLogin(new Login(known, l.getPassword()));
+                this.notifyAllSubscribers();
+            });
+        } catch (IOException ioe) {
+            throw journalFailure(ioe);
+        } finally {
+            this.mutations.readLock().unlock();
+        }
+    }
+
+    /**
+     * Make two accounts friends of each other
+     */
+    public void addFriendship(Account a, Account b) {
+        this.mutations.readLock().lock();
+        try {
+            if (this.journal != null) this.journal.addFriend(a, b);
+            this.apply(() -> {
+                if (this.friends.add(a.getUserId(), b.getUserId())) this.suggester.friendshipChanged(a.getUserId(), b.getUserId());
+            });
+        } catch (IOException ioe) {
+            throw journalFailure(ioe);
+        } finally {
+            this.mutations.readLock().unlock();
+        }
+    }
+
+    /**
+     * Make two accounts no longer friends of each other
+     */
+    public void removeFriendship(Account a, Account b) {
+        this.mutations.readLock().lock();
+        try {
+            if (this.journal != null) this.journal.removeFriend(a, b);
+            this.apply(() -> {
+                if (this.friends.remove(a.getUserId(), b.getUserId())) this.suggester.friendshipChanged(a.getUserId(), b.getUserId());
+            });
+        } catch (IOException ioe) {
+            throw journalFailure(ioe);
+        } finally {
+            this.mutations.readLock().unlock();
+        }
+    }
+
+    /**
+     * Have an account ignore one of its friends, so that it is
+     * no longer sent the friend's posts.
+     */
+    public void ignoreFriend(Account a, Account b) {
+        this.mutations.readLock().lock();
+        try {
+            if (this.journal != null) this.journal.ignoreFriend(a, b);
+            this.apply(() -> this.friends.ignore(a.getUserId(), b.getUserId()));
+        } catch (IOException ioe) {
+            throw journalFailure(ioe);
+        } finally {
+            this.mutations.readLock().unlock();
+        }
+    }
+
+    /**
+     * Have an account stop ignoring one of its friends
+     */
+    public void unignoreFriend(Account a, Account b) {
+        this.mutations.readLock().lock();
+        try {
+            if (this.journal != null) this.journal.unignoreFriend(a, b);
+            this.apply(() -> this.friends.unignore(a.getUserId(), b.getUserId()));
+        } catch (IOException ioe) {
+            throw journalFailure(ioe);
+        } finally {
+            this.mutations.readLock().unlock();
+        }
+    }
+
+    /** Check whether an account ignores another. */
+    public boolean isIgnoring(Account a, Account b) {
+        return this.friends.isIgnoring(a.getUserId(), b.getUserId());
+    }
+
+    /**
+     * Get the user ids of the friends an account ignores.
+     *
+     * @param userId the unique id of an account
+     */
+    public String[] getIgnoredBy(String userId) {
+        return this.friends.getIgnored(userId);
+    }
+
+    /** Check whether two accounts are friends of each other. */
+    public boolean areFriends(Account a, Account b) {
+        return this.friends.areFriends(a.getUserId(), b.getUserId());
+    }
+
+    /**
+     * Get the user ids of the friends of an account.
+     *
+     * @param userId the unique id of an account
+     */
+    public String[] getFriendsOf(String userId) {
+        return this.friends.getFriends(userId);
+    }
+
+    /**
+     * Suggest accounts an account may want to befriend: friends
+     * of its friends, ranked by how many friends they share.
+     *
+     * @param a the account to suggest friends for
+     * @param limit the most suggestions wanted
+     * @return the suggestions, best first
+     */
+    public FriendSuggestions suggestFriends(Account a, int limit) {
+        FriendSuggester.Ranked ranked = this.suggester.suggest(a.getUserId());
+        List<Account> accounts = new ArrayList<Account>();
+        int[] mutualFriends = new int[Math.min(Math.max(limit, 0), ranked.ids.length)];
+
+        for (int i = 0; i < ranked.ids.length && accounts.size() < mutualFriends.length; ++i) {
+            Account suggested = this.getAccountFor(this.friends.userIdOf(ranked.ids[i]));
+            if (suggested == null) continue;
+
+            mutualFriends[accounts.size()] = ranked.mutualFriends[i];
+            accounts.add(suggested);
+        }
+
+        return new FriendSuggestions(accounts, Arrays.copyOf(mutualFriends, accounts.size()));
+    }
+
+    /**
+     * Get a copy of an account that lists its friends, as it is
+     * sent to its own client. The accounts the server keeps do
+     * not, so that they and the posts they are sent with stay
+     * small.
+     *
+     * @param a an account known to the server
+     */
+    public Account withFriends(Account a) {
+        Account copy = new Account(a.getUserId(), a.getName());
+        for (String userId : this.getFriendsOf(a.getUserId())) {
+            Account friend = this.getAccountFor(userId);
+            if (friend != null) copy.addFriend(friend);
+        }
+        for (String userId : this.getIgnoredBy(a.getUserId())) {
+            Account friend = this.getAccountFor(userId);
+            if (friend != null) copy.ignoreFriend(friend);
+        }
+
+        return copy;
+    }
+
+    /**
+     * Get a set of all known accounts stored on the server.
+     * The set is an unmodifiable snapshot shared between
+     * callers until an account is next added or removed.
+     */
+    public Set<Account> getAccounts() {
+        return this.registry.getSnapshot();
+    }
+
+    /**
+     * Get the accounts added, renamed or removed since a version
+     * of the directory of accounts.
+     *
+     * @param since the directory version of a client's last sync
+     * @return the changes, or the whole directory if they are no longer known
+     */
+    public AccountRegistry.Delta getAccountChanges(long since) {
+        return this.registry.getChangesSince(since);
     }
 
     /**
      * Get a list of all posts stored on the server
      */
-    public synchronized List<Post> getPosts() {
-        return new ArrayList<Post>(this.posts);
+    public List<Post> getPosts() {
+        return this.posts.read(0, this.posts.size());
+    }
+
+    /**
+     * Get the timeline of posts waiting to be delivered to an account
+     *
+     * @param userId the unique id of an account
+     * @return the account's timeline, created empty if it has none
+     */
+    public Timeline getTimelineFor(String userId) {
+        return this.timelines.computeIfAbsent(userId, id -> new Timeline());
     }
 
     /**
-     * Get a list of posts that are new to a specified account
+     * Get the posts by friends of an account that are new to one
+     * of its sessions, and move the session's cursor past them.
      *
      * @param account the account to get posts for
-     * @return a list of the posts that have been made since the last time the account got posts
+     * @param session the session of the account to get posts for
+     * @return the posts added to the account's timeline since the session last got posts
      */
-    public synchronized List<Post> getNewPosts(Account account) {
-	int since = account.getPostAtLastSync();
-	account.setPostAtLastSync(this.posts.size());
+    public List<Post> getNewFriendPosts(Account account, SessionTokens.Session session) {
+        List<Post> result = new ArrayList<Post>();
+        session.setTimelineCursor(this.getTimelineFor(account.getUserId()).read(session.getTimelineCursor(), result));
 
-	return new ArrayList<Post>(this.posts.subList(since, this.posts.size()));
+        return this.withoutIgnored(account.getUserId(), result);
     }
 
     /**
-     * Get a list of posts that are new to a specified account, and are also made by friends of the account
+     * Take the posts of friends an account ignores out of a list
+     * of posts. Posts made while a friend was ignored never reach
+     * the timeline; this catches those made before.
+     */
+    private List<Post> withoutIgnored(String userId, List<Post> posts) {
+        int[] ignored = this.friends.getIgnoredIds(userId);
+        if (ignored.length == 0) return posts;
+
+        for (Iterator<Post> i = posts.iterator(); i.hasNext(); ) {
+            if (Arrays.binarySearch(ignored, this.friends.idOf(i.next().getPoster().getUserId())) >= 0) i.remove();
+        }
+
+        return posts;
+    }
+
+    /**
+     * Check whether an account is connected from any device.
      *
-     * @param account the account to get posts for
-     * @return a list of posts that have been made by the account's friends since it last got posts
+     * @param userId the unique id of the account
      */
-    public synchronized List<Post> getNewFriendPosts(Account account) {
-	List<Post> result = new ArrayList<Post>();
+    public boolean isOnline(String userId) {
+        return this.online.isOnline(userId);
+    }
 
-	for (Post p : this.getNewPosts(account)) {
-	    if (account.isFriendsWith(p.getPoster())) result.add(p);
-	}
+    /**
+     * Get the Client Proxies of the devices an account is connected
+     * from, empty if it is offline.
+     *
+     * @param userId the unique id of the account
+     */
+    public Set<ClientProxy> getProxies(String userId) {
+        return this.online.getProxies(userId);
+    }
+
+    /**
+     * Tell the subscribed friends of every account that has come
+     * online or gone offline since the last call, one update per
+     * friend. The friends of an account are those its posts are
+     * delivered to.
+     */
+    void publishPresence() {
+        Map<String, Boolean> changes = this.online.takeChanges();
+        Map<String, PresenceUpdate> updates = new HashMap<String, PresenceUpdate>();
+
+        for (Map.Entry<String, Boolean> e : changes.entrySet()) {
+            if (this.getAccountFor(e.getKey()) == null) continue;
 
-	return result;
+            for (String friend : this.getFriendsOf(e.getKey())) {
+                if (!this.subscribers.containsKey(friend)) continue;
+
+                PresenceUpdate update = updates.computeIfAbsent(friend, id -> new PresenceUpdate(new HashSet<String>(), new HashSet<String>()));
+                (e.getValue() ? update.online : update.offline).add(e.getKey());
+            }
+        }
+
+        for (Map.Entry<String, PresenceUpdate> e : updates.entrySet()) {
+            Set<ClientProxy> proxies = this.subscribers.get(e.getKey());
+            if (proxies == null) continue;
+
+            for (ClientProxy proxy : proxies) proxy.presence(e.getValue());
+        }
     }
 
     /**
-     * Add a post to the server
+     * Add a post to the server, and deliver it to the
+     * timeline of each of the poster's friends
      */
-    public synchronized void addPost(Post p) {
-        this.posts.add(p);
+    public void addPost(Post p) {
+        this.mutations.readLock().lock();
+        try {
+            if (this.journal != null) this.journal.addPost(p);
+            this.apply(() -> {
+                this.posts.append(p);
+
+                for (int friend : this.friends.getFriendIds(p.getPoster().getUserId())) {
+                    String userId = this.friends.userIdOf(friend);
+                    if (this.friends.isIgnoring(userId, p.getPoster().getUserId())) continue;
+                    this.getTimelineFor(userId).add(p);
+                    this.notifySubscribers(userId);
+                }
+            });
+        } catch (IOException ioe) {
+            throw journalFailure(ioe);
+        } finally {
+            this.mutations.readLock().unlock();
+        }
+    }
+
+    /**
+     * Have a client proxy told whenever its account's timeline or
+     * the directory of accounts changes.
+     */
+    void subscribe(ClientProxy proxy) {
+        this.subscribers.computeIfAbsent(proxy.account.getUserId(), id -> ConcurrentHashMap.newKeySet()).add(proxy);
+    }
+
+    /**
+     * Stop telling a client proxy about changes.
+     */
+    void unsubscribe(ClientProxy proxy) {
+        this.subscribers.computeIfPresent(proxy.account.getUserId(), (id, proxies) -> {
+            proxies.remove(proxy);
+            return proxies.isEmpty() ? null : proxies;
+        });
+    }
+
+    private void notifySubscribers(String userId) {
+        Set<ClientProxy> proxies = this.subscribers.get(userId);
+        if (proxies == null) return;
+
+        for (ClientProxy proxy : proxies) proxy.changed();
+    }
+
+    private void notifyAllSubscribers() {
+        for (Set<ClientProxy> proxies : this.subscribers.values()) {
+            for (ClientProxy proxy : proxies) proxy.changed();
+        }
     }
 
     /**
@@ -157,36 +890,110 @@ public class Server {
      * the {@link Client} and provides it with requested
      * information from the {@link Server}.
      */
-    static class ClientProxy extends Thread {
+    static class ClientProxy {
+        // How long a push waits for more changes to coalesce with
+        private static final long PUSH_DELAY_MILLIS = 20;
+        // Messages whose handlers only change the server, so that in a
+        // batch a run of them is applied after a single journal force
+        private static final Set<Class<?>> MUTATIONS = new HashSet<Class<?>>(Arrays.asList(
+            PostMessage.class, AddFriend.class, RemoveFriend.class, IgnoreFriend.class, UnignoreFriend.class));
+
         private Account account;
         private Socket socket;
         private Server server;
-        private ObjectOutputStream outgoing;
-        private ObjectInputStream incoming;
+        private MessageSink channel;
+        // Held while sending, since pushes are sent from another thread
+        private ReentrantLock sending = new ReentrantLock();
+        private AtomicBoolean pushPending = new AtomicBoolean(false);
+        // The directory version the client was last sent, guarded by sending
+        private long directoryVersion = 0;
+        // Set while a Batch is handled, so replies are flushed once at its end; guarded by sending
+        private boolean batching = false;
+        private SessionTokens.Session session;
+        // Whether the client was given the session's token
+        private boolean resumable;
 
-        private ClientProxy(Account account, Socket socket, Server server, ObjectInputStream incoming) throws IOException {
+        private ClientProxy(Account account, Socket socket, Server server, MessageSink channel, SessionTokens.Session session) throws IOException {
             this.account = account;
             this.server  = server;
             this.socket  = socket;
-            this.incoming = incoming;
-            this.outgoing = new ObjectOutputStream(socket.getOutputStream());
-            System.out.println("<< Account");
-            this.outgoing.writeObject(account);
-            this.outgoing.flush();
+            // A socket of the NIO engine has a channel, whose writes never block
+            this.channel = socket.getChannel() == null ? new TimedSink(channel, socket, TimedSink.DEFAULT_TIMEOUT_MILLIS) : channel;
+            this.session = session;
+            // A resumed session may still be served on a connection the server has not seen end
+            ClientProxy previous = session.attach(this);
+            try {
+                if (previous != null) previous.replaced();
+                this.directoryVersion = session.getDirectoryVersion();
+                // A new session starts after the posts the account's other sessions have had
+                if (session.getTimelineCursor() < 0) session.setTimelineCursor(server.getTimelineFor(account.getUserId()).getDelivered());
+                System.out.println("<< Account");
+                this.channel.send(server.withFriends(account));
+                // A client speaking object serialization may predate sessions,
+                // and expects nothing after its account
+                this.resumable = !(channel instanceof ObjectChannel);
+                if (this.resumable) this.channel.send(new SessionToken(session.getToken()));
+                this.channel.flush();
+            } catch (IOException | RuntimeException e) {
+                // Let the session expire, as if this connection had ended
+                session.detach(this);
+                throw e;
+            }
+            server.online.add(account.getUserId(), this);
+        }
+
+        /** Get an estimate of the heap held for this client's connection. */
+        long getRetainedBytes() {
+            return this.channel.getRetainedBytes();
         }
 
 	/**
-	 * Attempt to establish a new connection with a client
+	 * Attempt to establish a new connection with a client. The
+	 * client may speak either the binary protocol or Java object
+	 * serialization; see {@link BinaryChannel#accept}. Any read
+	 * timeout set on the socket applies to the handshake only,
+	 * and is cleared once the client has logged in, as is the
+	 * small limit on the frames of a binary channel.
 	 *
 	 * @throws IOException
 	 * @throws ClassNotFoundException
 	 * @param socket the socket which the server listens for connections on
 	 * @param server the server which the client proxy is acting as an interface for
+	 * @return <code>true</code> if a client proxy was started for the client
 	 */
-        public static void attemptEstablishConnection(Socket socket, Server server) throws IOException, ClassNotFoundException {
-            ObjectInputStream incoming = new ObjectInputStream(socket.getInputStream());
-            Object handShake = incoming.readObject();
+        public static boolean attemptEstablishConnection(Socket socket, Server server) throws IOException, ClassNotFoundException {
+            MessageChannel channel = BinaryChannel.accept(socket, server.getResolver());
+            ClientProxy proxy = establish(channel.receive(), socket, server, channel);
+
+            if (proxy == null) return false;
 
+            try {
+                socket.setSoTimeout(0);
+                if (channel instanceof BinaryChannel) ((BinaryChannel) channel).setMaxFrameBytes(BinaryChannel.MAX_FRAME_BYTES);
+                server.proxyThreads.newThread(() -> proxy.receiveFrom(channel)).start();
+            } catch (IOException | RuntimeException e) {
+                proxy.disconnected();
+                throw e;
+            }
+            return true;
+        }
+
+	/**
+	 * Log in the client of a new connection, given its first message.
+	 * A Login starts a new session; a Resume picks up the session
+	 * whose token it carries, answered with <code>false</code> if
+	 * that session has ended.
+	 *
+	 * @param handShake the first message received on the connection
+	 * @param socket the connection to the client
+	 * @param server the server which the client proxy is acting as an interface for
+	 * @param channel the channel to the client
+	 * @return a client proxy for the client, not yet started, or
+	 * <code>null</code> if the first message was neither a Login nor a
+	 * Resume of a live session
+	 * @throws RuntimeException if the password is wrong
+	 */
+        static ClientProxy establish(Object handShake, Socket socket, Server server, MessageSink channel) throws IOException {
             if (handShake instanceof Login) {
                 Account account = ((Login) handShake).getAccount();
                 Account knownAccount = server.getAccountFor(account.getUserId());
@@ -195,118 +1002,356 @@ public class Server {
                 if (knownAccount == null) {
                     server.addAccount(account);
 		    server.addLogin(new Login(account, password));
-                    new ClientProxy(account, socket, server, incoming).start();
+                    return new ClientProxy(account, socket, server, channel, server.sessions.issue(account.getUserId()));
                 } else {
 		    String knownPassword = server.getLoginFor(account.getUserId()).getPassword();
 
                     if (knownPassword.equals(password) == false) throw new RuntimeException("Wrong password");
-                    new ClientProxy(knownAccount, socket, server, incoming).start();
+                    return new ClientProxy(knownAccount, socket, server, channel, server.sessions.issue(account.getUserId()));
                 }
+            } else if (handShake instanceof Resume) {
+                SessionTokens.Session session = server.sessions.resume(((Resume) handShake).getToken());
+                Account account = session == null ? null : server.getAccountFor(session.getUserId());
+
+                if (account == null) {
+                    if (session != null) server.sessions.revoke(session);
+                    channel.send(false);
+                    channel.flush();
+                    return null;
+                }
+
+                ClientProxy proxy = new ClientProxy(account, socket, server, channel, session);
+                // Carry on pushing from where the old connection stopped
+                if (session.isSubscribed()) {
+                    try {
+                        server.subscribe(proxy);
+                        proxy.changed();
+                    } catch (RuntimeException re) {
+                        proxy.disconnected();
+                        throw re;
+                    }
+                }
+                return proxy;
             } else {
                 System.err.println("!! Bad connection attempt from: " + socket.getInetAddress() + ":" + socket.getPort());
+                return null;
             }
         }
 
-        private int globalPostIdCounter = 0;
-        // The synchronised keyword is required on all methods which may
-        // be called in parallel on the server from multiple clients at
-        // the same time.
-        private synchronized int getUniqueGlobalPostId() {
-            return ++this.globalPostIdCounter;
-        }
-
         private void logout(Account a) {
-	    Login currentLogin = this.server.getLoginFor(a.getUserId());
-	    this.server.removeLogin(currentLogin);
-            this.server.removeAccount(a);
+            this.server.sessions.revoke(this.session);
             System.out.println("!! " + a.getUserId() + " left the building");
-            try {
-                this.outgoing.close();
-                this.incoming.close();
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
-            }
         }
 
         private void postMessage(String msg) {
-            this.server.addPost(new Post(this.getUniqueGlobalPostId(), this.account, msg));
+            this.server.addPost(new Post(Post.nextGlobalPostId(), this.account, msg));
         }
 
         private void addFriend(Account a) {
-            this.account.addFriend(a);
-            a.addFriend(this.account);
+            Account friend = this.server.getAccountFor(a.getUserId());
+            if (friend == null) return;
+
+            this.server.addFriendship(this.account, friend);
         }
 
         private void removeFriend(Account a) {
-            this.account.removeFriend(a);
-            a.removeFriend(this.account);
+            Account friend = this.server.getAccountFor(a.getUserId());
+            if (friend == null) friend = a;
+
+            this.server.removeFriendship(this.account, friend);
+        }
+
+        private void ignoreFriend(Account a) {
+            Account friend = this.server.getAccountFor(a.getUserId());
+            if (friend == null) return;
+
+            this.server.ignoreFriend(this.account, friend);
+        }
+
+        private void unignoreFriend(Account a) {
+            Account friend = this.server.getAccountFor(a.getUserId());
+            if (friend == null) friend = a;
+
+            this.server.unignoreFriend(this.account, friend);
         }
 
 	private void validatePassword(Login login) {
+            this.sending.lock();
             try {
-                System.out.println("<< ValidationResponse");
 		Login validLogin = server.getLoginFor(login.getAccount().getUserId());
 
 		if (login.equals(validLogin) && login.getPassword().equals(validLogin.getPassword())){
-		    this.outgoing.writeObject(true);
+		    this.channel.send(true);
 		} else {
-		    this.outgoing.writeObject(false);
+		    this.channel.send(false);
 		}
-                this.outgoing.flush();
+                this.reply();
             } catch (IOException ioe) {
                 ioe.printStackTrace();
+            } finally {
+                this.sending.unlock();
             }
 	}
 
-        private void updateAccount(Account old, Login neu) {
-            server.removeAccount(old);
-	    server.removeLogin(server.getLoginFor(old.getUserId()));
-            server.addAccount(neu.getAccount());
-	    server.addLogin(neu);
+        private void suggestFriends(int limit) {
+            // Ranking may take a while; pushes need not wait for it
+            FriendSuggestions suggestions = this.server.suggestFriends(this.account, limit);
+
+            this.sending.lock();
+            try {
+                this.channel.send(suggestions);
+                this.reply();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            } finally {
+                this.sending.unlock();
+            }
+        }
+
+        private void updateAccount(Login neu) {
+            server.updateAccount(neu);
         }
 
-        private void sync() {
+        private void sync(long directoryVersion) {
+            this.sending.lock();
             try {
-                System.out.println("<< SyncResponse");
-                this.outgoing.
-                writeObject(new SyncResponse(new HashSet<Account>(this.server.getAccounts()),
-                                             new LinkedList<Post>(this.server.getNewFriendPosts(this.account))));
-                this.outgoing.flush();
+                AccountRegistry.Delta changes = this.server.getAccountChanges(directoryVersion);
+                this.channel.
+                send(new SyncResponse(new HashSet<Account>(changes.getChanged()), changes.getRemoved(),
+                                      changes.getVersion(), changes.isFull(),
+                                      this.server.getNewFriendPosts(this.account, this.session)));
+                this.reply();
+                this.directoryVersion = changes.getVersion();
+                this.session.setDirectoryVersion(this.directoryVersion);
             } catch (IOException ioe) {
                 ioe.printStackTrace();
+            } finally {
+                this.sending.unlock();
             }
         }
 
-	/**
-	 * Continuously try to handle any incoming messages from clients
-	 */
-        public void run() {
+        /**
+         * Answer a sync that was turned away with one that changes
+         * nothing, leaving the posts waiting for the next sync.
+         */
+        private void syncDeferred(long directoryVersion) {
+            this.sending.lock();
+            try {
+                this.channel.send(new SyncResponse(new HashSet<Account>(), new HashSet<String>(),
+                                                   directoryVersion, false, new ArrayList<Post>()));
+                this.reply();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            } finally {
+                this.sending.unlock();
+            }
+        }
+
+        private void subscribe(long directoryVersion) {
+            this.sending.lock();
+            try {
+                this.directoryVersion = directoryVersion;
+                this.session.setDirectoryVersion(directoryVersion);
+            } finally {
+                this.sending.unlock();
+            }
+            this.session.setSubscribed(true);
+            this.server.subscribe(this);
+            // Push anything that arrived while the client was away
+            this.changed();
+
+            Set<String> friendsOnline = new HashSet<String>();
+            for (String friend : this.server.getFriendsOf(this.account.getUserId())) {
+                // As published, so that the client is told when each goes offline
+                if (this.server.online.isPublishedOnline(friend)) friendsOnline.add(friend);
+            }
+            if (!friendsOnline.isEmpty()) this.presence(new PresenceUpdate(friendsOnline, new HashSet<String>()));
+        }
+
+        /** Push a change to the presence of friends. */
+        private void presence(PresenceUpdate update) {
+            this.sending.lock();
+            try {
+                this.channel.send(update);
+                this.reply();
+            } catch (IOException ioe) {
+                this.server.unsubscribe(this);
+            } finally {
+                this.sending.unlock();
+            }
+        }
+
+        /**
+         * Called when the account's timeline or the directory has
+         * changed. The first call schedules a push; calls until it
+         * runs are coalesced into it.
+         */
+        private void changed() {
+            if (this.pushPending.compareAndSet(false, true)) {
+                this.server.pushes.schedule(this::push, PUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void push() {
+            this.pushPending.set(false);
+
+            this.sending.lock();
             try {
-                while (true) {
-                    Object o = this.incoming.readObject();
-                    System.err.println(">> Received: " + o.getClass().getName());
-                    // o instanceof Account checks if o is an account
-                    // (Account) o type casts o into an Account so that it can be used as one
-                    if (o instanceof Login) {
-                        this.updateAccount(this.account, (Login) o);
-                    } else if (o instanceof ValidatePassword) {
-			this.validatePassword(((ValidatePassword) o).getLogin());
-		    } else if (o instanceof PostMessage) {
-                        this.postMessage(((PostMessage) o).getMsg());
-                    } else if (o instanceof AddFriend) {
-                        this.addFriend(((AddFriend) o).getFriend());
-                    } else if (o instanceof RemoveFriend) {
-                        this.removeFriend(((RemoveFriend) o).getFriend());
-                    } else if (o instanceof SyncRequest) {
-                        this.sync();
-                    } else if (o instanceof Logout) {
-                        this.logout(((Logout) o).getAccount());
-                        return;
+                AccountRegistry.Delta changes = this.server.getAccountChanges(this.directoryVersion);
+                List<Post> posts = this.server.getNewFriendPosts(this.account, this.session);
+                if (posts.isEmpty() && changes.getVersion() == this.directoryVersion) return;
+
+                this.channel.send(new PushUpdate(new HashSet<Account>(changes.getChanged()), changes.getRemoved(),
+                                                 changes.getVersion(), changes.isFull(), posts));
+                this.channel.flush();
+                this.directoryVersion = changes.getVersion();
+                this.session.setDirectoryVersion(this.directoryVersion);
+            } catch (IOException ioe) {
+                this.server.unsubscribe(this);
+            } finally {
+                this.sending.unlock();
+            }
+        }
+
+        /**
+         * Create a registry with the handlers for every message a
+         * client sends.
+         */
+        static HandlerRegistry defaultHandlers() {
+            HandlerRegistry handlers = new HandlerRegistry();
+
+            handlers.register(Login.class,            (proxy, m) -> { proxy.updateAccount(m); return true; });
+            handlers.register(ValidatePassword.class, (proxy, m) -> { proxy.validatePassword(m.getLogin()); return true; });
+            handlers.register(PostMessage.class,      (proxy, m) -> { proxy.postMessage(m.getMsg()); return true; });
+            handlers.register(AddFriend.class,        (proxy, m) -> { proxy.addFriend(m.getFriend()); return true; });
+            handlers.register(RemoveFriend.class,     (proxy, m) -> { proxy.removeFriend(m.getFriend()); return true; });
+            handlers.register(IgnoreFriend.class,     (proxy, m) -> { proxy.ignoreFriend(m.getFriend()); return true; });
+            handlers.register(UnignoreFriend.class,   (proxy, m) -> { proxy.unignoreFriend(m.getFriend()); return true; });
+            handlers.register(SuggestFriends.class,   (proxy, m) -> { proxy.suggestFriends(m.getLimit()); return true; });
+            handlers.register(Subscribe.class,        (proxy, m) -> { proxy.subscribe(m.getDirectoryVersion()); return true; });
+            handlers.register(Batch.class,            (proxy, m) -> proxy.batch(m));
+            handlers.register(Logout.class,           (proxy, m) -> { proxy.logout(m.getAccount()); return false; });
+            handlers.register(SyncRequest.class, new MessageHandler<SyncRequest>() {
+                public boolean handle(ClientProxy proxy, SyncRequest m) {
+                    proxy.sync(m.getDirectoryVersion());
+                    return true;
+                }
+                public void rejected(ClientProxy proxy, SyncRequest m) {
+                    proxy.syncDeferred(m.getDirectoryVersion());
+                }
+            });
+
+            return handlers;
+        }
+
+        /** Flush the replies sent so far, unless a batch is being handled. */
+        private void reply() throws IOException {
+            if (!this.batching) this.channel.flush();
+        }
+
+        /**
+         * Handle the messages of a batch in order, holding the sending
+         * lock throughout. The journal records of a run of mutations
+         * are forced once, after the last of them, and the mutations
+         * applied then; any other message may read what they change,
+         * so they are applied before it is handled. The replies are
+         * flushed once everything is durable, even if the client logged
+         * out in the batch.
+         *
+         * @return <code>false</code> if the client logged out in the batch
+         * @throws IllegalArgumentException if the batch is within a batch
+         */
+        private boolean batch(Batch b) {
+            boolean loggedIn = true;
+
+            // Only a batch decoded by a lenient object stream could contain one
+            if (this.batching) throw new IllegalArgumentException("A Batch may not contain a Batch");
+
+            this.sending.lock();
+            try {
+                this.batching = true;
+                this.server.beginBatch();
+                try {
+                    for (Message m : b.getMessages()) {
+                        if (!MUTATIONS.contains(m.getClass())) {
+                            this.server.endBatch();
+                            this.server.beginBatch();
+                        }
+                        if (!(loggedIn = this.handle(m))) break;
                     }
+                } finally {
+                    this.batching = false;
+                    this.server.endBatch();
                 }
+                this.channel.flush();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            } finally {
+                this.sending.unlock();
+            }
+
+            return loggedIn;
+        }
+
+	/**
+	 * Handle one message from the client.
+	 *
+	 * @param o the message
+	 * @return <code>false</code> if the client has logged out, else <code>true</code>
+	 */
+        boolean handle(Object o) {
+            return this.server.handlers.dispatch(this, o);
+        }
+
+        /**
+         * Stop serving the client on this connection, as its session
+         * has been resumed on another. Returns once any message being
+         * sent here has been given up, so that the session is no
+         * longer updated from this proxy.
+         */
+        private void replaced() {
+            try {
+                this.channel.close();
+            } catch (IOException ioe) {
+                // Already gone
+            }
+            this.sending.lock();
+            this.sending.unlock();
+        }
+
+        /**
+         * Called when the connection to the client has ended,
+         * whether the client logged out or not.
+         */
+        void disconnected() {
+            this.server.unsubscribe(this);
+            this.server.online.remove(this.account.getUserId(), this);
+            this.session.detach(this);
+            // No client can come back for it
+            if (!this.resumable) this.server.sessions.revoke(this.session);
+        }
+
+	/**
+	 * Continuously try to handle any incoming messages from clients,
+	 * blocking on the channel for each. Used by the threaded engine;
+	 * the NIO engine hands messages to {@link #handle} itself.
+	 *
+	 * @param channel the channel the proxy sends on, to receive from
+	 */
+        void receiveFrom(MessageChannel channel) {
+            try {
+                while (this.handle(channel.receive()))
+                    ;
             } catch (Exception e) {
                 // BAD Practise. Never catch "Exception"s. Too general.
                 e.printStackTrace();
+            } finally {
+                try {
+                    channel.close();
+                } catch (IOException ioe) {
+                    // Already gone
+                }
+                this.disconnected();
             }
         }
     }
@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A contention benchmark for the Server. A number of threads
+ * act like Client Proxies against one shared server, with a
+ * mix of handshake lookups, posts, syncs and directory reads,
+ * and the total throughput is reported for an increasing
+ * number of threads. Syncs read each account's timeline
+ * from a session's cursor, as a Client Proxy does.
+ *
+ * Usage: <code>java ServerBenchmark [users] [seconds per round]</code>
+ *
+ * @version %I%, %G%
+ */
+public class ServerBenchmark {
+    private static final int FRIENDS_PER_USER = 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        int users   = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int cores   = Runtime.getRuntime().availableProcessors();
+
+        Server server = new Server();
+        Account[] accounts = populate(server, users);
+        SessionTokens.Session[] sessions = open(server, accounts);
+
+        System.out.println("!! " + users + " users, " + FRIENDS_PER_USER + " friends each, " + cores + " cores");
+        // Warm up the JIT before anything is measured
+        run(server, accounts, sessions, cores, 1);
+
+        double single = 0;
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            double opsPerSecond = run(server, accounts, sessions, threads, seconds);
+            if (threads == 1) single = opsPerSecond;
+
+            System.out.printf("%3d threads: %12.0f ops/s  (%.2fx)%n", threads, opsPerSecond, opsPerSecond / single);
+            if (threads == cores) break;
+        }
+    }
+
+    private static Account[] populate(Server server, int users) {
+        Account[] accounts = new Account[users];
+        Random random = new Random(42);
+
+        for (int i = 0; i < users; ++i) {
+            accounts[i] = new Account("user" + i + "@example.com", "User " + i);
+            server.addAccount(accounts[i]);
+            server.addLogin(new Login(accounts[i], "secret" + i));
+        }
+        for (int i = 0; i < users; ++i) {
+            for (int f = 0; f < FRIENDS_PER_USER / 2; ++f) {
+                Account friend = accounts[random.nextInt(users)];
+                if (friend == accounts[i]) continue;
+
+                server.addFriendship(accounts[i], friend);
+            }
+        }
+
+        return accounts;
+    }
+
+    /**
+     * Start a session for each account, reading its timeline from
+     * where a newly connected client would.
+     */
+    private static SessionTokens.Session[] open(Server server, Account[] accounts) {
+        SessionTokens tokens = new SessionTokens();
+        SessionTokens.Session[] sessions = new SessionTokens.Session[accounts.length];
+
+        for (int i = 0; i < accounts.length; ++i) {
+            sessions[i] = tokens.issue(accounts[i].getUserId());
+            sessions[i].setTimelineCursor(server.getTimelineFor(accounts[i].getUserId()).getDelivered());
+        }
+
+        return sessions;
+    }
+
+    private static double run(final Server server, final Account[] accounts, final SessionTokens.Session[] sessions, int threads, int seconds) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final LongAdder ops = new LongAdder();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<Thread>();
+
+        for (int t = 0; t < threads; ++t) {
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long done = 0;
+
+                    try {
+                        start.await();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+
+                    while (running.get()) {
+                        int i = random.nextInt(accounts.length);
+                        Account a = accounts[i];
+                        int op = random.nextInt(100);
+
+                        if (op < 60) {
+                            // Handshake and password validation lookups
+                            server.getAccountFor(a.getUserId());
+                            server.getLoginFor(a.getUserId());
+                        } else if (op < 80) {
+                            server.addPost(new Post(Post.nextGlobalPostId(), a, "Hello"));
+                        } else if (op < 98) {
+                            // One sync at a time per session, as a proxy's sending lock ensures
+                            synchronized (sessions[i]) {
+                                server.getNewFriendPosts(a, sessions[i]);
+                            }
+                        } else {
+                            server.getAccounts().size();
+                        }
+                        ++done;
+                    }
+                    ops.add(done);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) worker.join();
+
+        return ops.sum() / ((System.nanoTime() - began) / 1e9);
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact binary image of the state of a Server: its
+ * accounts and logins, the friends of each account and the
+ * friends it ignores, the post log and the undelivered
+ * posts of each timeline.
+ * Each snapshot records the journal LSN it is consistent
+ * with, so that recovery only has to replay the journal
+ * from there.
+ *
+ * A snapshot file is written under a temporary name and
+ * renamed into place once it is complete, and it ends with
+ * a CRC32 of its contents, so a crash while writing never
+ * leaves a snapshot that would be loaded half-written.
+ *
+ * @version %I%, %G%
+ * @see Journal
+ */
+public class ServerSnapshot {
+    private static final int MAGIC = 0x54575353; // "TWSS"
+    // Format 2 added the friends each account ignores; format 1 is still read
+    private static final int FORMAT = 2;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+
+    /** The state of a server captured at a journal LSN, ready to be written. */
+    static class Image {
+        final long lsn;
+        final List<Account> accounts;
+        final List<Login> logins;
+        final Map<String, String[]> friends;
+        final Map<String, String[]> ignored;
+        final List<Post> posts;
+        final Map<String, List<Post>> timelines;
+
+        Image(long lsn, List<Account> accounts, List<Login> logins, Map<String, String[]> friends, Map<String, String[]> ignored,
+              List<Post> posts, Map<String, List<Post>> timelines) {
+            this.lsn       = lsn;
+            this.accounts  = accounts;
+            this.logins    = logins;
+            this.friends   = friends;
+            this.ignored   = ignored;
+            this.posts     = posts;
+            this.timelines = timelines;
+        }
+    }
+
+    /**
+     * Write a snapshot image to a directory.
+     *
+     * @param directory the directory to write the snapshot to
+     * @param image the state to write
+     * @return the snapshot file
+     */
+    public static File write(File directory, Image image) throws IOException {
+        File file = file(directory, image.lsn);
+        File temporary = new File(directory, file.getName() + ".tmp");
+
+        try (FileOutputStream fileOut = new FileOutputStream(temporary)) {
+            FileCodec.CheckedOutput out = new FileCodec.CheckedOutput(fileOut);
+
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(image.lsn);
+
+            out.writeInt(image.accounts.size());
+            for (Account a : image.accounts) {
+                FileCodec.writeString(out, a.getUserId());
+                FileCodec.writeString(out, a.getName());
+            }
+
+            out.writeInt(image.logins.size());
+            for (Login l : image.logins) {
+                FileCodec.writeString(out, l.getAccount().getUserId());
+                FileCodec.writeString(out, l.getPassword());
+            }
+
+            out.writeInt(image.friends.size());
+            for (Map.Entry<String, String[]> e : image.friends.entrySet()) {
+                FileCodec.writeString(out, e.getKey());
+                out.writeInt(e.getValue().length);
+                for (String f : e.getValue()) FileCodec.writeString(out, f);
+            }
+
+            out.writeInt(image.ignored.size());
+            for (Map.Entry<String, String[]> e : image.ignored.entrySet()) {
+                FileCodec.writeString(out, e.getKey());
+                out.writeInt(e.getValue().length);
+                for (String f : e.getValue()) FileCodec.writeString(out, f);
+            }
+
+            // Timelines are written before the posts, so that loading
+            // only has to remember the ids of the undelivered posts.
+            out.writeInt(image.timelines.size());
+            for (Map.Entry<String, List<Post>> e : image.timelines.entrySet()) {
+                FileCodec.writeString(out, e.getKey());
+                out.writeInt(e.getValue().size());
+                for (Post p : e.getValue()) out.writeLong(p.getGlobalPostId());
+            }
+
+            out.writeInt(image.posts.size());
+            for (Post p : image.posts) {
+                out.writeLong(p.getGlobalPostId());
+                FileCodec.writeString(out, p.getPoster().getUserId());
+                FileCodec.writeString(out, p.getContent());
+            }
+
+            out.finish();
+            fileOut.getFD().sync();
+        }
+
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        return file;
+    }
+
+    /**
+     * Load a snapshot into an empty server. The file is memory
+     * mapped rather than read through a stream, and its checksum
+     * is verified before anything is applied.
+     *
+     * @param file the snapshot file
+     * @param server the server to load the snapshot into
+     * @return the journal LSN the snapshot is consistent with
+     * @throws IOException if the snapshot could not be read or is corrupt
+     */
+    public static long load(File file, Server server) throws IOException {
+        ByteBuffer in = FileCodec.readChecked(file, 16, "snapshot");
+        if (in.getInt() != MAGIC) throw new IOException("Not a snapshot " + file);
+        int format = in.getInt();
+        if (format < 1 || format > FORMAT) throw new IOException("Unknown snapshot format " + format + " in " + file);
+        long lsn = in.getLong();
+
+        for (int i = in.getInt(); i > 0; --i) {
+            server.addAccount(new Account(FileCodec.readString(in), FileCodec.readString(in)));
+        }
+
+        for (int i = in.getInt(); i > 0; --i) {
+            Account a = server.getAccountFor(FileCodec.readString(in));
+            String password = FileCodec.readString(in);
+            if (a != null) server.addLogin(new Login(a, password));
+        }
+
+        for (int i = in.getInt(); i > 0; --i) {
+            String userId = FileCodec.readString(in);
+
+            for (int j = in.getInt(); j > 0; --j) server.restoreFriendship(userId, FileCodec.readString(in));
+        }
+
+        for (int i = format < 2 ? 0 : in.getInt(); i > 0; --i) {
+            String userId = FileCodec.readString(in);
+
+            for (int j = in.getInt(); j > 0; --j) server.restoreIgnore(userId, FileCodec.readString(in));
+        }
+
+        Set<Long> undelivered = new HashSet<Long>();
+        List<String> order = new ArrayList<String>();
+        Map<String, List<Long>> timelineIds = new HashMap<String, List<Long>>();
+        for (int i = in.getInt(); i > 0; --i) {
+            String userId = FileCodec.readString(in);
+            List<Long> ids = new ArrayList<Long>();
+
+            for (int j = in.getInt(); j > 0; --j) {
+                long id = in.getLong();
+                ids.add(id);
+                undelivered.add(id);
+            }
+            order.add(userId);
+            timelineIds.put(userId, ids);
+        }
+
+        Map<Long, Post> found = new HashMap<Long, Post>();
+        for (int i = in.getInt(); i > 0; --i) {
+            long id = in.getLong();
+            String posterId = FileCodec.readString(in);
+            Account poster = server.getAccountFor(posterId);
+            Post p = new Post(id, poster != null ? poster : new Account(posterId), FileCodec.readString(in));
+
+            server.restorePost(p);
+            if (undelivered.contains(id)) found.put(id, p);
+        }
+
+        for (String userId : order) {
+            Timeline timeline = server.getTimelineFor(userId);
+
+            for (long id : timelineIds.get(userId)) {
+                Post p = found.get(id);
+                if (p != null) timeline.add(p);
+            }
+        }
+
+        return lsn;
+    }
+
+    /**
+     * Get the snapshot files in a directory, newest first.
+     */
+    public static File[] list(File directory) {
+        List<Long> lsns = new ArrayList<Long>();
+        String[] names = directory.list();
+
+        if (names != null) {
+            for (String name : names) {
+                if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) continue;
+
+                try {
+                    lsns.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException nfe) {
+                    // Not one of ours
+                }
+            }
+        }
+
+        long[] sorted = new long[lsns.size()];
+        for (int i = 0; i < sorted.length; ++i) sorted[i] = lsns.get(i);
+        Arrays.sort(sorted);
+
+        File[] result = new File[sorted.length];
+        for (int i = 0; i < sorted.length; ++i) result[i] = file(directory, sorted[sorted.length - 1 - i]);
+
+        return result;
+    }
+
+    /**
+     * Delete every snapshot in a directory older than a given one,
+     * along with any temporary file left by an interrupted write.
+     */
+    public static void deleteOlderThan(File directory, File keep) throws IOException {
+        boolean older = false;
+
+        for (File f : list(directory)) {
+            if (older && !f.delete()) throw new IOException("Cannot delete " + f);
+            if (f.equals(keep)) older = true;
+        }
+
+        String[] names = directory.list();
+        if (names == null) return;
+        for (String name : names) {
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX + ".tmp")) new File(directory, name).delete();
+        }
+    }
+
+    private static File file(File directory, long lsn) {
+        return new File(directory, String.format("%s%020d%s", PREFIX, lsn, SUFFIX));
+    }
+}
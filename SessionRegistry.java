@@ -0,0 +1,112 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Client Proxies connected to the Server, by the user id
+ * of their account. An account may be connected from several
+ * devices at once, each with a proxy of its own, and is online
+ * as long as any of them is connected.
+ *
+ * Accounts going online and offline are remembered until
+ * {@link #takeChanges} is called, so that presence can be
+ * published in batches. An account that goes offline and
+ * online again in between is not reported at all.
+ *
+ * @version %I%, %G%
+ */
+public class SessionRegistry {
+    private Map<String, Set<Server.ClientProxy>> proxies = new ConcurrentHashMap<String, Set<Server.ClientProxy>>();
+    private Set<String> changed = ConcurrentHashMap.newKeySet();
+    // The accounts last published as online
+    private Set<String> published = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Add the proxy of a newly connected client.
+     *
+     * @param userId the unique id of the client's account
+     * @param proxy the proxy
+     */
+    public void add(String userId, Server.ClientProxy proxy) {
+        this.proxies.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet()).add(proxy);
+        this.changed.add(userId);
+    }
+
+    /**
+     * Remove the proxy of a disconnected client.
+     *
+     * @param userId the unique id of the client's account
+     * @param proxy the proxy
+     */
+    public void remove(String userId, Server.ClientProxy proxy) {
+        this.proxies.computeIfPresent(userId, (id, connected) -> {
+            connected.remove(proxy);
+            return connected.isEmpty() ? null : connected;
+        });
+        this.changed.add(userId);
+    }
+
+    /** Check whether an account is connected from any device. */
+    public boolean isOnline(String userId) {
+        return this.proxies.containsKey(userId);
+    }
+
+    /**
+     * Check whether an account was online as of the last changes
+     * taken, which is what its friends have been told.
+     */
+    public boolean isPublishedOnline(String userId) {
+        return this.published.contains(userId);
+    }
+
+    /** Get the proxies connected for an account, empty if it is offline. */
+    public Set<Server.ClientProxy> getProxies(String userId) {
+        Set<Server.ClientProxy> connected = this.proxies.get(userId);
+        return connected == null ? Collections.<Server.ClientProxy>emptySet() : Collections.unmodifiableSet(connected);
+    }
+
+    /** Get every connected proxy. */
+    public List<Server.ClientProxy> getAll() {
+        List<Server.ClientProxy> result = new ArrayList<Server.ClientProxy>();
+        for (Set<Server.ClientProxy> connected : this.proxies.values()) result.addAll(connected);
+
+        return result;
+    }
+
+    /** Get the number of accounts online. */
+    public int getOnlineCount() {
+        return this.proxies.size();
+    }
+
+    /** Get the number of connected proxies. */
+    public int getConnectionCount() {
+        int count = 0;
+        for (Set<Server.ClientProxy> connected : this.proxies.values()) count += connected.size();
+
+        return count;
+    }
+
+    /**
+     * Get the accounts whose presence has changed since the last
+     * call, and forget them.
+     *
+     * @return whether each changed account is now online, by user id
+     */
+    public Map<String, Boolean> takeChanges() {
+        Map<String, Boolean> result = new HashMap<String, Boolean>();
+
+        for (String userId : this.changed) {
+            this.changed.remove(userId);
+
+            boolean online = this.isOnline(userId);
+            boolean wasOnline = online ? !this.published.add(userId) : this.published.remove(userId);
+            if (online != wasOnline) result.put(userId, online);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * A message used by the Client Proxy to hand a Client the
+ * token of its session, right after the Account it logged
+ * in as. A client that loses its connection may present
+ * the token in a {@link Resume} instead of logging in again.
+ *
+ * @version %I%, %G%
+ */
+public class SessionToken extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private String token;
+
+    /**
+     * Constructor
+     *
+     * @param token the token of the session
+     */
+    public SessionToken(String token) {
+        this.token = token;
+    }
+
+    /** Get the token of the session. */
+    public String getToken() {
+        return this.token;
+    }
+}
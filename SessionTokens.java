@@ -0,0 +1,203 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The resumable sessions of the Server. A session is issued
+ * when a client logs in, and remembers what the Client Proxy
+ * needs to carry on where it left off if the client comes
+ * back on a new connection: the account, the directory
+ * version the client was last sent, how far it has read the
+ * account's timeline and whether it was subscribed to
+ * pushes. Posts that arrive in between wait in the
+ * account's timeline as usual.
+ *
+ * A session is served by one Client Proxy at a time. A client
+ * that resumes its session before the server has noticed the
+ * old connection is gone takes the session over from the
+ * proxy on that connection.
+ *
+ * Sessions are kept in memory only, so they end with the
+ * server. A session also ends when its client logs out, or
+ * when it has been disconnected for longer than its time to
+ * live.
+ *
+ * @version %I%, %G%
+ */
+public class SessionTokens {
+    /** Default time a disconnected session may be resumed in. */
+    public static final long DEFAULT_TTL_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /** The state of one session. */
+    public static class Session {
+        private final String token;
+        private final String userId;
+        private volatile long directoryVersion = 0;
+        private volatile long timelineCursor = -1;
+        private volatile boolean subscribed = false;
+        private volatile boolean connected = true;
+        private volatile long lastSeen = System.currentTimeMillis();
+        // The proxy serving the session, if its client is connected; guarded by this
+        private Server.ClientProxy proxy;
+
+        private Session(String token, String userId) {
+            this.token = token;
+            this.userId = userId;
+        }
+
+        /** Get the token the client presents to resume the session. */
+        public String getToken() {
+            return this.token;
+        }
+
+        /** Get the unique id of the session's account. */
+        public String getUserId() {
+            return this.userId;
+        }
+
+        /** Get the directory version the client was last sent. */
+        public long getDirectoryVersion() {
+            return this.directoryVersion;
+        }
+
+        /** Set the directory version the client was last sent. */
+        public void setDirectoryVersion(long directoryVersion) {
+            this.directoryVersion = directoryVersion;
+        }
+
+        /**
+         * Get the position in the account's timeline the session reads
+         * from next, or -1 if it has not read from it yet.
+         */
+        public long getTimelineCursor() {
+            return this.timelineCursor;
+        }
+
+        /** Set the position in the account's timeline the session reads from next. */
+        public void setTimelineCursor(long timelineCursor) {
+            this.timelineCursor = timelineCursor;
+        }
+
+        /** Check whether the client has subscribed to pushes. */
+        public boolean isSubscribed() {
+            return this.subscribed;
+        }
+
+        /** Set whether the client has subscribed to pushes. */
+        public void setSubscribed(boolean subscribed) {
+            this.subscribed = subscribed;
+        }
+
+        /**
+         * Attach the proxy that serves the session from now on.
+         *
+         * @param proxy the proxy on the client's new connection
+         * @return the proxy it replaces, or <code>null</code> if none
+         */
+        synchronized Server.ClientProxy attach(Server.ClientProxy proxy) {
+            Server.ClientProxy previous = this.proxy;
+            this.proxy = proxy;
+            this.connected = true;
+
+            return previous;
+        }
+
+        /**
+         * Detach a proxy whose connection has ended. Unless another
+         * proxy has taken the session over, its client is disconnected
+         * from now on.
+         *
+         * @param proxy the proxy on the connection that ended
+         */
+        synchronized void detach(Server.ClientProxy proxy) {
+            if (this.proxy != proxy) return;
+
+            this.proxy = null;
+            this.lastSeen = System.currentTimeMillis();
+            this.connected = false;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    private final long ttlMillis;
+
+    /** Create a session registry whose sessions live for the default time. */
+    public SessionTokens() {
+        this(DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Create a session registry.
+     *
+     * @param ttlMillis the time a disconnected session may be resumed in
+     */
+    public SessionTokens(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Start a new session for an account that has just logged in.
+     *
+     * @param userId the unique id of the account
+     * @return the session, with a new unguessable token
+     */
+    public Session issue(String userId) {
+        byte[] bytes = new byte[16];
+        this.random.nextBytes(bytes);
+
+        Session s = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), userId);
+        this.sessions.put(s.token, s);
+
+        return s;
+    }
+
+    /**
+     * Pick up a session on a new connection. The session counts as
+     * connected once a proxy is attached to it.
+     *
+     * @param token the token the client presented
+     * @return the session, or <code>null</code> if there is no such
+     * session or it has expired
+     */
+    public Session resume(String token) {
+        Session s = token == null ? null : this.sessions.get(token);
+        if (s == null) return null;
+
+        if (this.isExpired(s, System.currentTimeMillis())) {
+            this.sessions.remove(token, s);
+            return null;
+        }
+
+        return s;
+    }
+
+    /**
+     * End a session, so that it can no longer be resumed.
+     *
+     * @param s the session
+     */
+    public void revoke(Session s) {
+        this.sessions.remove(s.token, s);
+    }
+
+    /** Forget every session that has expired. */
+    public void purgeExpired() {
+        long now = System.currentTimeMillis();
+
+        for (Iterator<Session> i = this.sessions.values().iterator(); i.hasNext(); ) {
+            if (this.isExpired(i.next(), now)) i.remove();
+        }
+    }
+
+    /** Get the number of sessions that may be resumed. */
+    public int size() {
+        return this.sessions.size();
+    }
+
+    private boolean isExpired(Session s, long now) {
+        return !s.connected && now - s.lastSeen > this.ttlMillis;
+    }
+}
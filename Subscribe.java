@@ -0,0 +1,27 @@
+/**
+ * A message used by a Client to ask the Client Proxy to
+ * push new posts from friends and changes to the directory
+ * of accounts as they happen, instead of waiting for a
+ * SyncRequest. Pushes arrive as {@link PushUpdate}s.
+ *
+ * @version %I%, %G%
+ */
+public class Subscribe extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private long directoryVersion;
+
+    /**
+     * Initialize a new subscription.
+     *
+     * @param directoryVersion the directory version of the client's last sync
+     */
+    public Subscribe(long directoryVersion) {
+        this.directoryVersion = directoryVersion;
+    }
+
+    /** Get the directory version of the client's last sync. */
+    public long getDirectoryVersion() {
+        return this.directoryVersion;
+    }
+}
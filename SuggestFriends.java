@@ -0,0 +1,27 @@
+/**
+ * A message used by a Client to ask its Client Proxy for
+ * the accounts the logged in user is most likely to know:
+ * those who are not yet friends, but share the most friends
+ * with the user. Answered with {@link FriendSuggestions}.
+ *
+ * @version %I%, %G%
+ */
+public class SuggestFriends extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private int limit;
+
+    /**
+     * Constructor
+     *
+     * @param limit the most suggestions wanted
+     */
+    public SuggestFriends(int limit) {
+        this.limit = limit;
+    }
+
+    /** Get the most suggestions wanted. */
+    public int getLimit() {
+        return this.limit;
+    }
+}
@@ -1,4 +1,30 @@
 
-/** Sync request event. */
-public class SyncRequest implements java.io.Serializable {
+/**
+ * Sync request event. Carries the version of the directory
+ * of accounts the client got with its last sync, so that
+ * only the accounts changed since are sent back.
+ */
+public class SyncRequest extends Message {
+    private static final long serialVersionUID = 2653716831002425771L;
+
+    private long directoryVersion;
+
+    /** Constructor for a client that has no directory yet. */
+    public SyncRequest() {
+        this(0);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param directoryVersion Directory version of the last sync response.
+     */
+    public SyncRequest(long directoryVersion) {
+        this.directoryVersion = directoryVersion;
+    }
+
+    /** Get the directory version of the client's last sync. */
+    public long getDirectoryVersion() {
+        return this.directoryVersion;
+    }
 }
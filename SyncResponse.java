@@ -1,4 +1,4 @@
-import java.io.Serializable;
+import java.util.Collections;
 import java.util.Set;
 import java.util.List;
 
@@ -9,21 +9,48 @@ import java.util.List;
  * users and posts that can be extracted via provided methods
  * by the Client.
  *
+ * The users are the changes to the directory of accounts
+ * since the version the client asked from: the accounts
+ * added or renamed, and the user ids of the accounts
+ * removed. If the server could not tell what changed,
+ * the users are the whole directory instead.
+ *
  * @version %I%, %G%
  */
 
-public class SyncResponse implements Serializable {
+public class SyncResponse extends Message {
+    private static final long serialVersionUID = 4694931784409174389L;
+
     private Set<Account> users;
+    private Set<String> removedUsers;
+    private long directoryVersion;
+    private boolean fullDirectory;
     private List<Post> posts;
 
     /**
-     * Initialize a new sync response.
+     * Initialize a new sync response with the whole directory.
      * 
      * @param users a set of the users the server knows about
      * @param posts a list of posts made to the server
      */
     public SyncResponse(Set<Account> users, List<Post> posts) {
+        this(users, Collections.<String>emptySet(), 0, true, posts);
+    }
+
+    /**
+     * Initialize a new sync response.
+     *
+     * @param users the users added or renamed, or every user if <code>fullDirectory</code>
+     * @param removedUsers the user ids of the users removed
+     * @param directoryVersion the directory version the response brings the client up to
+     * @param fullDirectory whether <code>users</code> is the whole directory
+     * @param posts a list of posts made to the server
+     */
+    public SyncResponse(Set<Account> users, Set<String> removedUsers, long directoryVersion, boolean fullDirectory, List<Post> posts) {
         this.users = users;
+        this.removedUsers = removedUsers;
+        this.directoryVersion = directoryVersion;
+        this.fullDirectory = fullDirectory;
         this.posts = posts;
     }
     
@@ -35,9 +62,30 @@ public class SyncResponse implements Serializable {
     }
 
     /**
-     * Get the known users.
+     * Get the known users, or those added or renamed since the last sync.
      */
     public Set<Account> getUsers() {
         return this.users;
     }
+
+    /**
+     * Get the user ids of the users removed since the last sync.
+     */
+    public Set<String> getRemovedUsers() {
+        return this.removedUsers;
+    }
+
+    /**
+     * Get the directory version to send with the next sync request.
+     */
+    public long getDirectoryVersion() {
+        return this.directoryVersion;
+    }
+
+    /**
+     * Check if the users are the whole directory, replacing what the client knew.
+     */
+    public boolean isFullDirectory() {
+        return this.fullDirectory;
+    }
 }
@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compares running Client Proxies on platform threads with
+ * running them on virtual threads. For each mode a server is
+ * started in this process, as many binary protocol clients
+ * as asked for log in to it, and the benchmark reports how
+ * many connections were established, the heap and threads
+ * they cost, and the latency of syncs made by a number of
+ * requesting threads spread over the connections.
+ *
+ * Virtual threads are skipped on a runtime without them.
+ * The native stack each platform thread reserves is not part
+ * of the heap and is not counted.
+ *
+ * Usage: <code>java ThreadModeBenchmark [connections] [requesters] [seconds]</code>
+ *
+ * @version %I%, %G%
+ */
+public class ThreadModeBenchmark {
+    private static final PrintStream report = System.out;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int requesters  = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds     = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        report.println("!! " + connections + " connections, " + requesters + " requesters, Java " + System.getProperty("java.version"));
+        // The proxies log every login and logout; keep that out of the report
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(System.out);
+
+        run(ProxyThreads.Mode.PLATFORM, connections, requesters, seconds);
+        if (ProxyThreads.isVirtualAvailable()) {
+            run(ProxyThreads.Mode.VIRTUAL, connections, requesters, seconds);
+        } else {
+            report.println("!! Virtual threads are not available, skipped");
+        }
+    }
+
+    private static void run(ProxyThreads.Mode mode, int connections, int requesters, int seconds) throws Exception {
+        final Server server = new Server();
+        server.setProxyThreads(ProxyThreads.factory(mode));
+        final ServerSocket socket = new ServerSocket(0, connections, InetAddress.getLoopbackAddress());
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                while (!socket.isClosed()) {
+                    try {
+                        Server.ClientProxy.attemptEstablishConnection(socket.accept(), server);
+                    } catch (Exception e) {
+                        // Closed at the end of the round
+                    }
+                }
+            }
+        }, "acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        List<MessageChannel> channels = new ArrayList<MessageChannel>();
+        List<Account> accounts = new ArrayList<Account>();
+        long began = System.nanoTime();
+        try {
+            for (int i = 0; i < connections; ++i) {
+                MessageChannel channel = BinaryChannel.connect(new Socket(socket.getInetAddress(), socket.getLocalPort()), new AccountResolver() {
+                    public Account resolve(String userId) {
+                        return new Account(userId);
+                    }
+                });
+                channel.send(new Login(new Account("bench" + i + "@example.com", "Bench " + i), "secret"));
+                channel.flush();
+                accounts.add((Account) channel.receive());
+                channel.receive(); // SessionToken
+                channels.add(channel);
+            }
+        } catch (IOException ioe) {
+            report.println("!! Stopped connecting: " + ioe.getMessage());
+        }
+        long connectMillis = (System.nanoTime() - began) / 1000000;
+
+        long heapAfter = usedHeap();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        long[] latencies = sync(channels, requesters, seconds);
+
+        int established = channels.size();
+        report.printf("%-8s %6d connections in %5d ms, %7.1f KB heap each, %5d platform threads%n",
+                      mode, established, connectMillis,
+                      (heapAfter - heapBefore) / 1024.0 / Math.max(established, 1), threadsAfter - threadsBefore);
+        report.printf("%-8s %6d syncs: p50 %6.0f us, p99 %6.0f us, p99.9 %6.0f us%n",
+                      mode, latencies.length,
+                      percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999));
+
+        for (int i = 0; i < channels.size(); ++i) {
+            try {
+                channels.get(i).send(new Logout(accounts.get(i)));
+                channels.get(i).flush();
+                channels.get(i).close();
+            } catch (IOException ioe) {
+                // Already gone
+            }
+        }
+        socket.close();
+    }
+
+    /**
+     * Have a number of threads make syncs over the connections,
+     * each thread taking its own share of them in turn.
+     *
+     * @return the latency of every sync in nanoseconds, sorted
+     */
+    private static long[] sync(final List<MessageChannel> channels, int requesters, int seconds) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<long[]> samples = new ArrayList<long[]>();
+        final int[] counts = new int[requesters];
+        List<Thread> workers = new ArrayList<Thread>();
+
+        requesters = Math.min(requesters, channels.size());
+        for (int t = 0; t < requesters; ++t) {
+            final int first = t;
+            final int step = requesters;
+            final long[] latencies = new long[1 << 20];
+            samples.add(latencies);
+
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    int n = 0;
+
+                    try {
+                        for (int i = first; running.get() && n < latencies.length; i = i + step < channels.size() ? i + step : first) {
+                            MessageChannel channel = channels.get(i);
+                            long began = System.nanoTime();
+
+                            channel.send(new SyncRequest());
+                            channel.flush();
+                            channel.receive();
+                            latencies[n++] = System.nanoTime() - began;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace(report);
+                    }
+                    counts[first] = n;
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) worker.join();
+
+        int total = 0;
+        for (int t = 0; t < requesters; ++t) total += counts[t];
+        long[] result = new long[total];
+        for (int t = 0, at = 0; t < requesters; at += counts[t], ++t) {
+            System.arraycopy(samples.get(t), 0, result, at, counts[t]);
+        }
+        Arrays.sort(result);
+
+        return result;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+
+        return sorted[Math.min((int) (sorted.length * p), sorted.length - 1)] / 1000.0;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A message sink over a blocking connection that gives up on
+ * a client that stops taking what is written to it. A send or
+ * flush that has not returned within the timeout has its
+ * socket closed under it, which fails the write and ends the
+ * connection, so a stalled client only holds up the thread
+ * writing to it, and whoever waits for that thread, for a
+ * while. This is the threaded engine's counterpart of the
+ * NIO engine disconnecting a client with more than
+ * {@link NioServer#MAX_OUTBOUND_BYTES} left to write.
+ *
+ * @version %I%, %G%
+ */
+public class TimedSink implements MessageSink {
+    /**
+     * Default time a client has to take what is written to it: 10
+     * seconds, unless the system property
+     * <code>twitterish.writeTimeoutMillis</code> says otherwise.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = Long.getLong("twitterish.writeTimeoutMillis", 10000);
+
+    // Shared by every sink; it only ever closes sockets
+    private static final ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "write-watchdog");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    static {
+        // Nearly every write is done in time, and its deadline cancelled
+        watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    private MessageSink sink;
+    private Socket socket;
+    private long timeoutMillis;
+
+    /**
+     * Wrap the sink of a blocking connection.
+     *
+     * @param sink the sink
+     * @param socket the socket the sink writes to
+     * @param timeoutMillis the time a client has to take each write
+     */
+    TimedSink(MessageSink sink, Socket socket, long timeoutMillis) {
+        this.sink = sink;
+        this.socket = socket;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void send(Object message) throws IOException {
+        this.within(() -> this.sink.send(message));
+    }
+
+    public void flush() throws IOException {
+        this.within(this.sink::flush);
+    }
+
+    public void close() throws IOException {
+        this.sink.close();
+    }
+
+    public long getRetainedBytes() {
+        return this.sink.getRetainedBytes();
+    }
+
+    private void within(Write write) throws IOException {
+        ScheduledFuture<?> deadline = watchdog.schedule(this::stalled, this.timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            write.run();
+        } finally {
+            deadline.cancel(false);
+        }
+    }
+
+    private void stalled() {
+        System.err.println("!! " + this.socket.getInetAddress() + ":" + this.socket.getPort() + " is not keeping up, disconnecting");
+        try {
+            this.socket.close();
+        } catch (IOException ioe) {
+            // Already gone
+        }
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The inbox of posts waiting to be delivered to one account.
+ * The Server appends each new post to the timelines of
+ * the poster's friends when it is made, so that a sync
+ * only has to read the caller's own timeline.
+ *
+ * Every post added is given the next position in the
+ * timeline. Each session of the account, on whichever
+ * device, reads from a cursor of its own, so that every
+ * device gets every post. The timeline also remembers how
+ * far any session has read, as the point a new session
+ * starts from and the end of the posts still undelivered.
+ *
+ * A timeline is bounded; when it is full the oldest post is
+ * overwritten, and a cursor that had not reached it skips
+ * it.
+ *
+ * A timeline guards itself with a ReentrantLock rather than
+ * its monitor, so that a Client Proxy on a virtual thread
+ * waiting for it does not hold on to its carrier thread.
+ *
+ * @version %I%, %G%
+ */
+public class Timeline {
+    /** Default number of posts kept per account. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private Post[] posts;
+    // The position the next post is given
+    private long end = 0;
+    // The furthest any session has read
+    private long delivered = 0;
+    private long dropped = 0;
+    private ReentrantLock lock = new ReentrantLock();
+
+    /** Create a timeline with the default capacity. */
+    public Timeline() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a timeline.
+     *
+     * @param capacity the most posts kept at once
+     */
+    public Timeline(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.posts = new Post[capacity];
+    }
+
+    /**
+     * Append a post, overwriting the oldest one if the timeline is full.
+     *
+     * @param p the post to deliver
+     */
+    public void add(Post p) {
+        this.lock.lock();
+        try {
+            if (this.end - this.delivered == this.posts.length) {
+                ++this.delivered;
+                ++this.dropped;
+            }
+
+            this.posts[(int) (this.end % this.posts.length)] = p;
+            ++this.end;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the posts from a cursor to the end of the timeline,
+     * oldest first, and mark them delivered.
+     *
+     * @param cursor the position of the first post to read
+     * @param into the list the posts are added to
+     * @return the cursor to read from next time
+     */
+    public long read(long cursor, List<Post> into) {
+        this.lock.lock();
+        try {
+            for (long i = Math.max(cursor, this.end - this.posts.length); i < this.end; ++i) {
+                into.add(this.posts[(int) (i % this.posts.length)]);
+            }
+            this.delivered = Math.max(this.delivered, this.end);
+
+            return this.end;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get all undelivered posts, oldest first, without marking
+     * them delivered.
+     */
+    public List<Post> peek() {
+        this.lock.lock();
+        try {
+            List<Post> result = new ArrayList<Post>((int) (this.end - this.delivered));
+
+            for (long i = this.delivered; i < this.end; ++i) {
+                result.add(this.posts[(int) (i % this.posts.length)]);
+            }
+
+            return result;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the cursor a new session starts reading from, which is
+     * the furthest any session has read.
+     */
+    public long getDelivered() {
+        this.lock.lock();
+        try {
+            return this.delivered;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Get the number of undelivered posts. */
+    public int size() {
+        this.lock.lock();
+        try {
+            return (int) (this.end - this.delivered);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Get the number of undelivered posts dropped because the timeline was full. */
+    public long getDropped() {
+        this.lock.lock();
+        try {
+            return this.dropped;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -1,17 +1,20 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Main class for client.
  */
 public class Twitterish {
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("Usage: java Twitterish <server_ip> <port_number>");
+        if (args.length < 2 || args.length > 3 || (args.length == 3 && !args[2].equals("--legacy"))) {
+            System.err.println("Usage: java Twitterish <server_ip> <port_number> [--legacy]");
         } else {
             try {
-                new Client(args[0], Integer.parseInt(args[1])).start();
+                new Client(args[0], Integer.parseInt(args[1]), args.length == 3).start();
             } catch (Exception e) {
                 e.printStackTrace();
                 System.err.println("Something went wrong. Please debug this error.");
@@ -20,29 +23,56 @@ public class Twitterish {
     }
     private static class Client {
         private Account loggedInUser;
-        private Set<Account> knownUsers = new TreeSet<Account>();
+        private Directory knownUsers = new Directory();
+        private long directoryVersion = 0;
 	private Feed feed = new Feed();
-
-        private ObjectOutputStream out;
-        private ObjectInputStream in;
+        // The user ids of friends known to be online, guarded by this
+        private Set<String> onlineFriends = new HashSet<String>();
+
+        private volatile MessageChannel channel;
+        // Given at login, presented to resume the session after a lost connection;
+        // null over object serialization, which logs in again instead
+        private String sessionToken;
+        private String password;
+        private volatile boolean loggingOut = false;
+        // Replies to requests, handed over by the receiving thread;
+        // cleared when a new connection replaces a lost one
+        private BlockingQueue<Object> replies = new LinkedBlockingQueue<Object>();
+        // The connection the last request was sent on
+        private MessageChannel requestChannel;
+        private Thread receiver;
+        private static final Object DISCONNECTED = new Object();
+        private static final int FEED_PAGE_SIZE = 20;
+        private static final int SEARCH_RESULTS = 20;
+        private static final int CACHE_SAVE_SECONDS = 60;
+
+        // Kept between runs, so the feed shows at once and only changes are synced
+        private ClientCache cache;
+        // Set when the directory or feed has changed since the cache was saved; guarded by this
+        private boolean cacheDirty = false;
+        // Held while the cache is saved, so the saver and quit never write it together
+        private final Object cacheSaving = new Object();
 
         private String serverIp;
         private String myIp;
         private int port;
+        private boolean legacy;
 
 	/**
 	 * Constructor.
 	 *
 	 * @param serverIp IP adress of server.
 	 * @param port Which port to connect to server through.
+	 * @param legacy Use Java object serialization instead of the binary protocol.
 	 */
-        public Client(String serverIp, int port) {
+        public Client(String serverIp, int port, boolean legacy) {
             this.serverIp = serverIp;
             this.port = port;
+            this.legacy = legacy;
         }
 
         private void newAccount(Account account) {
-            this.knownUsers.add(account);
+            this.knownUsers.put(account);
         }
 
         private void newPost(Post post) {
@@ -54,16 +84,30 @@ public class Twitterish {
             }
         }
         private void sendMessage(Object o) {
+            this.requestChannel = this.channel;
             try {
-                this.outgoing.writeObject(o);
-                this.outgoing.flush();
+                this.requestChannel.send(o);
+                this.channel.flush();
             } catch (IOException ioe) {
                 ioe.printStackTrace();
             }
         }
         private Object receiveMessage() {
+            if (this.receiver != null) {
+                try {
+                    while (true) {
+                        Object o = this.replies.poll(1, TimeUnit.SECONDS);
+                        if (o != null) return o == DISCONNECTED ? null : o;
+                        // Sent on a connection lost since: no reply will come
+                        if (this.channel != this.requestChannel) return null;
+                    }
+                } catch (InterruptedException ie) {
+                    return null;
+                }
+            }
+
             try {
-                Object o = this.incoming.readObject();
+                Object o = this.channel.receive();
                 String s = o == null ? "<null>" : o.getClass().toString();
                 System.out.printf("Received %s message\n",  s);
                 return o;
@@ -75,6 +119,46 @@ public class Twitterish {
             return null;
         }
 
+        /**
+         * Start receiving messages on a background thread. Pushed
+         * updates are applied as they arrive; everything else is a
+         * reply, handed over to {@link #receiveMessage}.
+         */
+        private void startReceiving() {
+            this.receiver = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        try {
+                            while (true) {
+                                Object o = Client.this.channel.receive();
+
+                                if (o instanceof PushUpdate) {
+                                    Client.this.applySync((PushUpdate) o);
+                                } else if (o instanceof PresenceUpdate) {
+                                    Client.this.applyPresence((PresenceUpdate) o);
+                                } else {
+                                    Client.this.replies.put(o);
+                                }
+                            }
+                        } catch (IOException ioe) {
+                            // Disconnected
+                        } catch (ClassNotFoundException cnfe) {
+                            cnfe.printStackTrace();
+                        } catch (InterruptedException ie) {
+                            // Shutting down
+                            break;
+                        }
+                        // Anyone waiting for a reply will not get one; if no one
+                        // is, the marker is cleared once connected again
+                        Client.this.replies.offer(DISCONNECTED);
+                        if (Client.this.loggingOut || !Client.this.reconnect()) break;
+                    }
+                }
+            }, "receiver");
+            this.receiver.setDaemon(true);
+            this.receiver.start();
+        }
+
         private void postMessage() {
             System.out.println("Write your message on a single line: ");
 
@@ -107,18 +191,26 @@ public class Twitterish {
         }
         
         private void addFriend() {
-            if (this.knownUsers.size() == 0) {
-                System.out.println("You seem to be alone in the universe, at this moment.");
-                return;
+            synchronized (this) {
+                if (this.knownUsers.isEmpty()) {
+                    System.out.println("You seem to be alone in the universe, at this moment.");
+                    return;
+                }
             }
 
-            System.out.println("Who to befriend?");
-
-            Account[] knownUsers = (Account[]) this.knownUsers.toArray(new Account[0]);
-            Arrays.sort(knownUsers);
+            System.out.print("Who to befriend? Type the start of their name: ");
+            String prefix = System.console().readLine();
 
+            Account[] found;
+            synchronized (this) {
+                found = this.knownUsers.search(prefix, SEARCH_RESULTS).toArray(new Account[0]);
+            }
+            if (found.length == 0) {
+                System.out.println("No one by that name.");
+                return;
+            }
 
-            Account friend = chooseAccount(knownUsers);
+            Account friend = chooseAccount(found);
 
             sendMessage(new AddFriend(friend));
             this.loggedInUser.addFriend(friend);
@@ -126,6 +218,46 @@ public class Twitterish {
             System.out.println("Befriended " + friend.getName());
         }
 
+        private void suggestFriends() {
+            this.sendMessage(new SuggestFriends(10));
+            Object o = this.receiveMessage();
+
+            if (!(o instanceof FriendSuggestions)) {
+                System.out.println("Error: expected friend suggestions, got " + (o == null ? "disconnect" : o.getClass()));
+                return;
+            }
+
+            FriendSuggestions suggestions = (FriendSuggestions) o;
+            if (suggestions.getAccounts().isEmpty()) {
+                System.out.println("No suggestions yet. Friends of your friends will show up here.");
+                return;
+            }
+
+            System.out.println("People you may know:");
+            for (int i = 0; i < suggestions.getAccounts().size(); ++i) {
+                System.out.println(i + "\t" + suggestions.getAccounts().get(i).getName() + "\t(" + suggestions.getMutualFriends(i) + " mutual)");
+            }
+            System.out.println("Who to befriend? (empty for no one)");
+
+            String choiceString = System.console().readLine();
+            if (choiceString.isEmpty()) return;
+            try {
+                int choice = Integer.parseInt(choiceString);
+                if (choice < 0 || choice >= suggestions.getAccounts().size()) {
+                    System.out.println("Invalid input \'" + choiceString + "\'");
+                    return;
+                }
+                Account friend = suggestions.getAccounts().get(choice);
+
+                sendMessage(new AddFriend(friend));
+                this.loggedInUser.addFriend(friend);
+
+                System.out.println("Befriended " + friend.getName());
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid input \'" + choiceString + "\'");
+            }
+        }
+
         private void removeFriend() {
             if (this.loggedInUser.hasFriends() == false) {
                 System.out.println("You don't have anyone to unfriend. Try to make a few friends first.");
@@ -154,6 +286,7 @@ public class Twitterish {
 
             Account friend = chooseAccount(friends);
 
+            sendMessage(new IgnoreFriend(friend));
             this.loggedInUser.ignoreFriend(friend);
 
             System.out.println("Ignored " + friend.getName());
@@ -170,6 +303,7 @@ public class Twitterish {
 
             Account friend = chooseAccount(friends);
 
+            sendMessage(new UnignoreFriend(friend));
             this.loggedInUser.unIgnoreFriend(friend);
 
             System.out.println("Unignored " + friend.getName());
@@ -177,7 +311,91 @@ public class Twitterish {
 
         private void quit() {
             System.out.println("Logging out...");
+            this.loggingOut = true;
             this.sendMessage(new Logout(this.loggedInUser));
+            this.saveCache();
+        }
+
+        /**
+         * Load the cache of the user, if there is one, and show the
+         * newest page of the cached feed. A cache that cannot be
+         * read is thrown away.
+         */
+        private void loadCache(String userId) {
+            this.cache = new ClientCache(this.serverIp, this.port, userId);
+            try {
+                synchronized (this) {
+                    this.directoryVersion = this.cache.load(this.knownUsers, this.feed);
+                }
+            } catch (IOException ioe) {
+                System.out.println("Could not read the cache, starting afresh: " + ioe.getMessage());
+                this.cache.delete();
+                synchronized (this) {
+                    this.knownUsers = new Directory();
+                    this.feed = new Feed();
+                    this.directoryVersion = 0;
+                }
+                return;
+            }
+
+            if (this.feed.size() > 0) {
+                StringBuilder page = new StringBuilder();
+                try {
+                    this.feed.renderPage(page, 0, FEED_PAGE_SIZE, new Account(userId));
+                } catch (IOException ioe) {
+                    // A StringBuilder does not throw
+                    throw new UncheckedIOException(ioe);
+                }
+                System.out.println("Your feed as you last saw it:");
+                System.out.println(page);
+            }
+        }
+
+        /**
+         * Save the directory and feed to the cache, if they have
+         * changed. Saves are made one at a time, each of the state as
+         * it was when the save before it ended, so a later save is
+         * never overwritten by an earlier one.
+         */
+        private void saveCache() {
+            if (this.cache == null) return;
+
+            synchronized (this.cacheSaving) {
+                long version;
+                List<Account> accounts;
+                List<Post> posts;
+                synchronized (this) {
+                    if (!this.cacheDirty) return;
+                    version = this.directoryVersion;
+                    accounts = new ArrayList<Account>(this.knownUsers.getAll());
+                    posts = this.feed.getPosts();
+                    this.cacheDirty = false;
+                }
+
+                try {
+                    this.cache.save(version, accounts, posts);
+                } catch (IOException ioe) {
+                    System.err.println("Could not save the cache: " + ioe.getMessage());
+                }
+            }
+        }
+
+        /** Save the cache every so often while the client runs. */
+        private void startSavingCache() {
+            Thread saver = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        try {
+                            Thread.sleep(CACHE_SAVE_SECONDS * 1000L);
+                        } catch (InterruptedException ie) {
+                            break;
+                        }
+                        Client.this.saveCache();
+                    }
+                }
+            }, "cache");
+            saver.setDaemon(true);
+            saver.start();
         }
 
         private void editAccount() {
@@ -187,9 +405,14 @@ public class Twitterish {
 
             System.out.println("Validating password...");
 	    this.sendMessage(new ValidatePassword(new Login(this.loggedInUser, password)));
-            boolean validPassword = (Boolean) receiveMessage();
+            Object o = receiveMessage();
 
-            if (validPassword) {
+            if (!(o instanceof Boolean)) {
+                System.out.println("Error: expected a password check, got " + (o == null ? "disconnect" : o.getClass()));
+                return;
+            }
+
+            if ((Boolean) o) {
                 System.out.print("Update your password: ");
                 password = new String(System.console().readPassword());
 
@@ -206,62 +429,160 @@ public class Twitterish {
         private void listFriends() {
             if (this.loggedInUser.hasFriends()) {
                 Account[] friends = this.loggedInUser.getFriends();
-                this.printEnumeratedChoices(friends);
+
+                synchronized (this) {
+                    for (int i = 0; i < friends.length; ++i) {
+                        System.out.println(i + "\t" + friends[i].getName() + (this.onlineFriends.contains(friends[i].getUserId()) ? "\t(online)" : ""));
+                    }
+                }
             } else {
                 System.out.println("Sorry, but you don't seem to have any friends.");
             }
         }
 
         private void syncWithServer() {
-            this.sendMessage(new SyncRequest());
+            this.sendMessage(new SyncRequest(this.directoryVersion));
             Object o = this.receiveMessage();
 
             if (o instanceof SyncResponse) {
+                this.applySync((SyncResponse) o);
+            } else {
+                System.out.println("Error: expected sync response, got " + (o == null ? "disconnect" : o.getClass()));
+            }
+        }
 
-		Set<Account> newUsers = new TreeSet<Account>();
-
-		for (Account syncUser : (((SyncResponse) o).getUsers())) {
-		    boolean userAlreadyKnown = false;
-		    for (Account knownUser : this.knownUsers) {
-			if (syncUser.getUserId().equals(knownUser.getUserId())) {
-			    knownUser.setName(syncUser.getName());
-			    userAlreadyKnown = true;
-			}
-		    }
-
-		    if (!userAlreadyKnown) {
-			newUsers.add(syncUser);
-		    }
-		}
-
-		this.knownUsers.addAll(newUsers);
+        /**
+         * Apply a sync response or pushed update to the directory and
+         * the feed. Called both from the user's thread and the
+         * receiving thread.
+         */
+        private synchronized void applySync(SyncResponse response) {
+            if (response.isFullDirectory()) this.knownUsers.retainAll(response.getUsers());
+            for (String userId : response.getRemovedUsers()) {
+                this.knownUsers.remove(userId);
+            }
+            for (Account syncUser : response.getUsers()) {
+                this.knownUsers.put(syncUser);
+            }
+            this.directoryVersion = response.getDirectoryVersion();
+            this.cacheDirty = true;
 
-                // TODO
-                // Only print the posts that I am interested in
+            // Posts already had, from an overlapping sync or before a reconnect, are left out
+            feed.addPosts(response.getPosts());
+        }
 
-                // TODO
-                // Use the feed object for this
+        /** Apply a change to the presence of friends. */
+        private synchronized void applyPresence(PresenceUpdate update) {
+            this.onlineFriends.addAll(update.getOnline());
+            this.onlineFriends.removeAll(update.getOffline());
+        }
 
-                for (Post p : ((SyncResponse) o).getPosts()) {
-		    feed.addPost(p);
-		}
+	private void updateFeed() {
+            StringBuilder page = new StringBuilder();
+
+            for (int i = 0; ; ++i) {
+                int rendered;
+                page.setLength(0);
+                synchronized (this) {
+                    try {
+                        rendered = feed.renderPage(page, i, FEED_PAGE_SIZE, this.loggedInUser);
+                    } catch (IOException ioe) {
+                        // A StringBuilder does not throw
+                        throw new UncheckedIOException(ioe);
+                    }
+                }
+                System.out.print(page);
+
+                if (rendered < FEED_PAGE_SIZE) break;
+                System.out.print("-- [Enter] for older posts, anything else to stop -- ");
+                if (!System.console().readLine().isEmpty()) break;
+            }
+            System.out.println();
+	}
 
+        private MessageChannel connect() throws IOException, UnknownHostException {
+            Socket socket = new Socket(this.serverIp, port);
+            if (this.legacy) {
+                return new ObjectChannel(socket.getInputStream(), socket.getOutputStream());
             } else {
-                System.out.println("Error: expected sync response, got " + o.getClass());
+                return BinaryChannel.connect(socket, new AccountResolver() {
+                    public Account resolve(String userId) {
+                        synchronized (Client.this) {
+                            Account known = Client.this.knownUsers.get(userId);
+                            if (known != null) return known;
+                        }
+                        for (Account friend : Client.this.loggedInUser.getFriends()) {
+                            if (friend.getUserId().equals(userId)) return friend;
+                        }
+                        return new Account(userId);
+                    }
+                });
             }
         }
 
-	private void updateFeed() {
-	    String o = feed.renderAll(this.loggedInUser);
-	    System.out.println(o);
-	}
+        /**
+         * Get a new connection to the server after the old one was
+         * lost, resuming the session if the server still has it and
+         * logging in again if not. Retries with a growing delay.
+         *
+         * @return <code>true</code> if connected again
+         */
+        private boolean reconnect() {
+            long delay = 250;
+
+            for (int attempt = 0; attempt < 10 && !this.loggingOut; ++attempt) {
+                try {
+                    Thread.sleep(delay);
+                    delay = Math.min(delay * 2, 8000);
+
+                    MessageChannel channel;
+                    if (this.sessionToken != null) {
+                        channel = this.connect();
+                        channel.send(new Resume(this.sessionToken));
+                        channel.flush();
+                        Object o = channel.receive();
+
+                        if (o instanceof Account) {
+                            // The session is picked up as it was, subscription included
+                            this.sessionToken = ((SessionToken) channel.receive()).getToken();
+                            this.connected(channel);
+                            return true;
+                        }
+                        channel.close();
+                    }
+
+                    channel = this.connect();
+                    channel.send(new Login(new Account(this.loggedInUser.getUserId(), this.loggedInUser.getName()), this.password));
+                    channel.flush();
+                    if (channel.receive() instanceof Account) {
+                        if (!this.legacy) this.sessionToken = ((SessionToken) channel.receive()).getToken();
+                        synchronized (this) {
+                            channel.send(new Subscribe(this.directoryVersion));
+                        }
+                        channel.flush();
+                        this.connected(channel);
+                        return true;
+                    }
+                } catch (Exception e) {
+                    // Try again
+                }
+            }
 
-        private ObjectOutputStream outgoing;
-        private ObjectInputStream incoming;
+            System.out.println("Lost the connection to the server.");
+            return false;
+        }
+
+        /**
+         * Replace a lost connection. Nothing still queued is a reply to
+         * a request sent on the new one, so the queue is cleared first.
+         */
+        private void connected(MessageChannel channel) {
+            this.replies.clear();
+            this.channel = channel;
+        }
 
         private void loginOrCreateUser() throws IOException, UnknownHostException {
-            Socket socket = new Socket(this.serverIp, port);
-            this.outgoing = new ObjectOutputStream(socket.getOutputStream());
+            this.channel = this.connect();
 
             System.out.print("Enter your user id (email address): ");
             String userid = System.console().readLine();
@@ -275,12 +596,21 @@ public class Twitterish {
             assert(name.length() > 0);
 
             System.out.println("Logging in new user " + userid + "...");
-            outgoing.writeObject(new Login(new Account(userid, name), password));
-
-            this.outgoing = outgoing;
-            incoming = new ObjectInputStream(socket.getInputStream());
-            Account a = (Account) receiveMessage();
-            this.loggedInUser = a;
+            sendMessage(new Login(new Account(userid, name), password));
+
+            Object reply = receiveMessage();
+            if (!(reply instanceof Account)) throw new IOException("Could not log in as " + userid);
+            this.loggedInUser = (Account) reply;
+            // Sessions can only be resumed over the binary protocol
+            if (!this.legacy) this.sessionToken = ((SessionToken) receiveMessage()).getToken();
+            this.password = password;
+            // Only now is the user known to be the owner of the cache
+            this.loadCache(userid);
+
+            // Only what changed since the cache was saved is pushed
+            sendMessage(new Subscribe(this.directoryVersion));
+            this.startReceiving();
+            this.startSavingCache();
         }
 
         private void displaySplashScreen() {
@@ -306,6 +636,7 @@ public class Twitterish {
             System.out.print("[I]gnore friend    |  ");
 	    System.out.print("U[n]ignore friend  |  ");
             System.out.print("[L]ist friends     |  ");
+            System.out.print("[F]riend suggestions |  ");
             System.out.print("[E]dit account     |  ");
             System.out.print("[Q]uit");
             System.out.println();
@@ -345,6 +676,9 @@ public class Twitterish {
             case 'l':
                 this.listFriends();
                 return true;
+            case 'f':
+                this.suggestFriends();
+                return true;
             case 'q':
                 this.quit();
                 return false;
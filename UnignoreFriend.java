@@ -0,0 +1,25 @@
+/**
+ * Unignore friend event. Posts the friend makes from now on
+ * are sent again.
+ *
+ * @version %I%, %G%
+ */
+public class UnignoreFriend extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private Account friendToBeUnignored;
+
+    /**
+     * Constructor
+     *
+     * @param friendToBeUnignored Account of friend to stop ignoring.
+     */
+    public UnignoreFriend(Account friendToBeUnignored) {
+        this.friendToBeUnignored = friendToBeUnignored;
+    }
+
+    /** Get which friend is no longer to be ignored. */
+    public Account getFriend() {
+        return this.friendToBeUnignored;
+    }
+}
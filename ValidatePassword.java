@@ -9,7 +9,9 @@
  * @version %I%, %G%
  */
 
-public class ValidatePassword implements java.io.Serializable {
+public class ValidatePassword extends Message {
+    private static final long serialVersionUID = -775488120837493075L;
+
     private Login login;
 
     /** Initialize a new message regarding password validation.
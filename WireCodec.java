@@ -0,0 +1,377 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes messages for the binary protocol. Each message
+ * class has a type byte and a {@link Codec}; an encoded
+ * message is its type byte followed by its fields.
+ *
+ * Accounts are only sent in full where the receiver needs
+ * their names: the directory in a SyncResponse, the Account
+ * sent at login and a Login. Everywhere else, such as the
+ * poster of a Post or the friend in an AddFriend, only
+ * the user id is sent, and the receiver resolves it with
+ * an {@link AccountResolver}.
+ *
+ * @version %I%, %G%
+ * @see BinaryChannel
+ */
+public class WireCodec {
+    /** Encodes and decodes the fields of one message class. */
+    interface Codec<T> {
+        void encode(T message, DataOutputStream out) throws IOException;
+        T decode(DataInputStream in, AccountResolver accounts) throws IOException;
+    }
+
+    private static final byte LOGIN             = 1;
+    private static final byte LOGOUT            = 2;
+    private static final byte POST_MESSAGE      = 3;
+    private static final byte ADD_FRIEND        = 4;
+    private static final byte REMOVE_FRIEND     = 5;
+    private static final byte SYNC_REQUEST      = 6;
+    private static final byte SYNC_RESPONSE     = 7;
+    private static final byte VALIDATE_PASSWORD = 8;
+    private static final byte ACCOUNT           = 9;
+    private static final byte BOOLEAN           = 10;
+    private static final byte SUBSCRIBE         = 11;
+    private static final byte PUSH_UPDATE       = 12;
+    private static final byte BATCH             = 13;
+    private static final byte SESSION_TOKEN     = 14;
+    private static final byte RESUME            = 15;
+    private static final byte PRESENCE_UPDATE   = 16;
+    private static final byte SUGGEST_FRIENDS   = 17;
+    private static final byte FRIEND_SUGGESTIONS = 18;
+    private static final byte IGNORE_FRIEND     = 19;
+    private static final byte UNIGNORE_FRIEND   = 20;
+
+    private static final Map<Class<?>, Byte> types = new HashMap<Class<?>, Byte>();
+    private static final Codec<?>[] codecs = new Codec<?>[128];
+
+    private static <T> void register(byte type, Class<T> c, Codec<T> codec) {
+        types.put(c, type);
+        codecs[type] = codec;
+    }
+
+    /**
+     * Encode a message, type byte first.
+     *
+     * @param message the message to encode
+     * @param out the stream to encode it to
+     * @throws IOException if the message has no codec
+     */
+    @SuppressWarnings("unchecked")
+    public static void encode(Object message, DataOutputStream out) throws IOException {
+        Byte type = types.get(message.getClass());
+        if (type == null) throw new IOException("No codec for " + message.getClass().getName());
+
+        out.writeByte(type);
+        ((Codec<Object>) codecs[type]).encode(message, out);
+    }
+
+    /**
+     * Decode a message encoded by {@link #encode}.
+     *
+     * @param in the stream to decode from
+     * @param accounts resolves the user ids in the message
+     * @return the message
+     * @throws IOException if the type byte is unknown or the message is malformed
+     */
+    public static Object decode(DataInputStream in, AccountResolver accounts) throws IOException {
+        int type = in.readByte();
+        if (type < 0 || codecs[type] == null) throw new IOException("Unknown message type " + type);
+
+        return codecs[type].decode(in, accounts);
+    }
+
+    /** Write a string as its UTF-8 length and bytes, <code>null</code> as -1. */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        FileCodec.writeString(out, s);
+    }
+
+    /** Read a string written by {@link #writeString}, no longer than a frame. */
+    static String readString(DataInputStream in) throws IOException {
+        return FileCodec.readString(in, BinaryChannel.MAX_FRAME_BYTES);
+    }
+
+    /** Write the user id and name of an account. */
+    static void writeAccount(DataOutputStream out, Account a) throws IOException {
+        writeString(out, a.getUserId());
+        writeString(out, a.getName());
+    }
+
+    /** Read an account written by {@link #writeAccount}, as a new instance. */
+    static Account readAccount(DataInputStream in) throws IOException {
+        return new Account(readString(in), readString(in));
+    }
+
+    /** Write the fields shared by a SyncResponse and a PushUpdate. */
+    static void writeSync(SyncResponse m, DataOutputStream out) throws IOException {
+        out.writeLong(m.getDirectoryVersion());
+        out.writeBoolean(m.isFullDirectory());
+        out.writeInt(m.getUsers().size());
+        for (Account a : m.getUsers()) writeAccount(out, a);
+        out.writeInt(m.getRemovedUsers().size());
+        for (String userId : m.getRemovedUsers()) writeString(out, userId);
+
+        out.writeInt(m.getPosts().size());
+        for (Post p : m.getPosts()) {
+            out.writeLong(p.getGlobalPostId());
+            writeString(out, p.getPoster().getUserId());
+            writeString(out, p.getContent());
+        }
+    }
+
+    /** Read the fields written by {@link #writeSync}. */
+    static SyncResponse readSync(DataInputStream in, AccountResolver accounts, boolean push) throws IOException {
+        long directoryVersion = in.readLong();
+        boolean fullDirectory = in.readBoolean();
+        int userCount = in.readInt();
+        Set<Account> users = new HashSet<Account>();
+        Map<String, Account> byId = new HashMap<String, Account>();
+        for (int i = 0; i < userCount; ++i) {
+            Account a = readAccount(in);
+            users.add(a);
+            byId.put(a.getUserId(), a);
+        }
+        Set<String> removed = new HashSet<String>();
+        for (int i = in.readInt(); i > 0; --i) removed.add(readString(in));
+
+        int postCount = in.readInt();
+        List<Post> posts = new LinkedList<Post>();
+        for (int i = 0; i < postCount; ++i) {
+            long id = in.readLong();
+            String posterId = readString(in);
+            Account poster = byId.get(posterId);
+
+            posts.add(new Post(id, poster != null ? poster : accounts.resolve(posterId), readString(in)));
+        }
+
+        return push ? new PushUpdate(users, removed, directoryVersion, fullDirectory, posts)
+                    : new SyncResponse(users, removed, directoryVersion, fullDirectory, posts);
+    }
+
+    static {
+        register(LOGIN, Login.class, new Codec<Login>() {
+            public void encode(Login m, DataOutputStream out) throws IOException {
+                writeAccount(out, m.getAccount());
+                writeString(out, m.getPassword());
+            }
+            public Login decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return new Login(readAccount(in), readString(in));
+            }
+        });
+        register(LOGOUT, Logout.class, new Codec<Logout>() {
+            public void encode(Logout m, DataOutputStream out) throws IOException {
+                writeString(out, m.getAccount().getUserId());
+            }
+            public Logout decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return new Logout(accounts.resolve(readString(in)));
+            }
+        });
+        register(POST_MESSAGE, PostMessage.class, new Codec<PostMessage>() {
+            public void encode(PostMessage m, DataOutputStream out) throws IOException {
+                writeString(out, m.getMsg());
+            }
+            public PostMessage decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return new PostMessage(readString(in));
+            }
+        });
+        register(ADD_FRIEND, AddFriend.class, new Codec<AddFriend>() {
+            public void encode(AddFriend m, DataOutputStream out) throws IOException {
+                writeString(out, m.getFriend().getUserId());
+            }
+            public AddFriend decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return new AddFriend(accounts.resolve(readString(in)));
+            }
+        });
+        register(REMOVE_FRIEND, RemoveFriend.class, new Codec<RemoveFriend>() {
+            public void encode(RemoveFriend m, DataOutputStream out) throws IOException {
+                writeString(out, m.getFriend().getUserId());
+            }
+            public RemoveFriend decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return new RemoveFriend(accounts.resolve(readString(in)));
+            }
+        });
+        register(SYNC_REQUEST, SyncRequest.class, new Codec<SyncRequest>() {
+            public void encode(SyncRequest m, DataOutputStream out) throws IOException {
+                out.writeLong(m.getDirectoryVersion());
+            }
+            public SyncRequest decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return new SyncRequest(in.readLong());
+            }
+        });
+        register(SYNC_RESPONSE, SyncResponse.class, new Codec<SyncResponse>() {
+            public void encode(SyncResponse m, DataOutputStream out) throws IOException {
+                writeSync(m, out);
+            }
+            public SyncResponse decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return readSync(in, accounts, false);
+            }
+        });
+        register(PUSH_UPDATE, PushUpdate.class, new Codec<PushUpdate>() {
+            public void encode(PushUpdate m, DataOutputStream out) throws IOException {
+                writeSync(m, out);
+            }
+            public PushUpdate decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return (PushUpdate) readSync(in, accounts, true);
+            }
+        });
+        register(SUBSCRIBE, Subscribe.class, new Codec<Subscribe>() {
+            public void encode(Subscribe m, DataOutputStream out) throws IOException {
+                out.writeLong(m.getDirectoryVersion());
+            }
+            public Subscribe decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return new Subscribe(in.readLong());
+            }
+        });
+        register(SESSION_TOKEN, SessionToken.class, new Codec<SessionToken>() {
+            public void encode(SessionToken m, DataOutputStream out) throws IOException {
+                writeString(out, m.getToken());
+            }
+            public SessionToken decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return new SessionToken(readString(in));
+            }
+        });
+        register(RESUME, Resume.class, new Codec<Resume>() {
+            public void encode(Resume m, DataOutputStream out) throws IOException {
+                writeString(out, m.getToken());
+            }
+            public Resume decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return new Resume(readString(in));
+            }
+        });
+        register(PRESENCE_UPDATE, PresenceUpdate.class, new Codec<PresenceUpdate>() {
+            public void encode(PresenceUpdate m, DataOutputStream out) throws IOException {
+                out.writeInt(m.getOnline().size());
+                for (String userId : m.getOnline()) writeString(out, userId);
+                out.writeInt(m.getOffline().size());
+                for (String userId : m.getOffline()) writeString(out, userId);
+            }
+            public PresenceUpdate decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                Set<String> online = new HashSet<String>();
+                for (int i = in.readInt(); i > 0; --i) online.add(readString(in));
+                Set<String> offline = new HashSet<String>();
+                for (int i = in.readInt(); i > 0; --i) offline.add(readString(in));
+
+                return new PresenceUpdate(online, offline);
+            }
+        });
+        register(IGNORE_FRIEND, IgnoreFriend.class, new Codec<IgnoreFriend>() {
+            public void encode(IgnoreFriend m, DataOutputStream out) throws IOException {
+                writeString(out, m.getFriend().getUserId());
+            }
+            public IgnoreFriend decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return new IgnoreFriend(accounts.resolve(readString(in)));
+            }
+        });
+        register(UNIGNORE_FRIEND, UnignoreFriend.class, new Codec<UnignoreFriend>() {
+            public void encode(UnignoreFriend m, DataOutputStream out) throws IOException {
+                writeString(out, m.getFriend().getUserId());
+            }
+            public UnignoreFriend decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return new UnignoreFriend(accounts.resolve(readString(in)));
+            }
+        });
+        register(SUGGEST_FRIENDS, SuggestFriends.class, new Codec<SuggestFriends>() {
+            public void encode(SuggestFriends m, DataOutputStream out) throws IOException {
+                out.writeInt(m.getLimit());
+            }
+            public SuggestFriends decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return new SuggestFriends(in.readInt());
+            }
+        });
+        register(FRIEND_SUGGESTIONS, FriendSuggestions.class, new Codec<FriendSuggestions>() {
+            public void encode(FriendSuggestions m, DataOutputStream out) throws IOException {
+                out.writeInt(m.getAccounts().size());
+                for (int i = 0; i < m.getAccounts().size(); ++i) {
+                    writeAccount(out, m.getAccounts().get(i));
+                    out.writeInt(m.getMutualFriends(i));
+                }
+            }
+            public FriendSuggestions decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                int size = in.readInt();
+                if (size < 0 || size > BinaryChannel.MAX_FRAME_BYTES / 12) throw new IOException("Bad suggestion count " + size);
+
+                List<Account> suggested = new ArrayList<Account>(size);
+                int[] mutualFriends = new int[size];
+                for (int i = 0; i < size; ++i) {
+                    suggested.add(readAccount(in));
+                    mutualFriends[i] = in.readInt();
+                }
+
+                return new FriendSuggestions(suggested, mutualFriends);
+            }
+        });
+        register(VALIDATE_PASSWORD, ValidatePassword.class, new Codec<ValidatePassword>() {
+            public void encode(ValidatePassword m, DataOutputStream out) throws IOException {
+                writeAccount(out, m.getLogin().getAccount());
+                writeString(out, m.getLogin().getPassword());
+            }
+            public ValidatePassword decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return new ValidatePassword(new Login(readAccount(in), readString(in)));
+            }
+        });
+        register(ACCOUNT, Account.class, new Codec<Account>() {
+            public void encode(Account m, DataOutputStream out) throws IOException {
+                writeAccount(out, m);
+
+                Account[] friends = m.getFriends();
+                out.writeInt(friends.length);
+                for (Account f : friends) writeAccount(out, f);
+
+                Account[] ignored = m.getIgnoredFriends();
+                out.writeInt(ignored.length);
+                for (Account f : ignored) writeString(out, f.getUserId());
+            }
+            public Account decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                Account a = readAccount(in);
+                Map<String, Account> friends = new HashMap<String, Account>();
+
+                for (int i = in.readInt(); i > 0; --i) {
+                    Account f = readAccount(in);
+                    friends.put(f.getUserId(), f);
+                    a.addFriend(f);
+                }
+                for (int i = in.readInt(); i > 0; --i) {
+                    Account f = friends.get(readString(in));
+                    if (f != null) a.ignoreFriend(f);
+                }
+
+                return a;
+            }
+        });
+        register(BATCH, Batch.class, new Codec<Batch>() {
+            public void encode(Batch m, DataOutputStream out) throws IOException {
+                out.writeInt(m.size());
+                for (Message message : m.getMessages()) WireCodec.encode(message, out);
+            }
+            public Batch decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                Batch batch = new Batch();
+
+                for (int i = in.readInt(); i > 0; --i) {
+                    Object message = WireCodec.decode(in, accounts);
+                    if (!(message instanceof Message) || message instanceof Batch) throw new IOException("Bad message in batch: " + message.getClass().getName());
+                    batch.add((Message) message);
+                }
+
+                return batch;
+            }
+        });
+        register(BOOLEAN, Boolean.class, new Codec<Boolean>() {
+            public void encode(Boolean m, DataOutputStream out) throws IOException {
+                out.writeBoolean(m);
+            }
+            public Boolean decode(DataInputStream in, AccountResolver accounts) throws IOException {
+                return in.readBoolean();
+            }
+        });
+    }
+}
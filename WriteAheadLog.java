@@ -0,0 +1,513 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records on local disk, used by the
+ * Server to make its mutations survive a restart.
+ *
+ * Every record is framed as its length, a type byte, the
+ * payload and a CRC32 of type and payload, so that a record
+ * torn by a crash is detected and discarded on recovery.
+ * Records are addressed by their log sequence number (LSN),
+ * the byte offset of the record from the start of the log.
+ * The log is split into segment files named after the LSN
+ * of their first record.
+ *
+ * How long {@link #append} waits for a record to reach the
+ * disk depends on the log's {@link Durability}.
+ *
+ * @version %I%, %G%
+ */
+public class WriteAheadLog implements AutoCloseable {
+    /** When an appended record is forced to disk. */
+    public enum Durability {
+        /** Every append writes and forces its own record before returning. */
+        SYNC,
+        /**
+         * Appends wait until their record has been forced, but
+         * concurrent appends share a single force (group commit).
+         */
+        BATCH,
+        /**
+         * Appends return at once; records are forced in the
+         * background at a fixed interval, so the most recent
+         * ones may be lost in a crash.
+         */
+        ASYNC
+    }
+
+    /** Receives the records of the log, in order, during {@link #replay}. */
+    public interface Replayer {
+        /**
+         * Apply one record.
+         *
+         * @param lsn the log sequence number of the record
+         * @param type the type of the record
+         * @param payload the payload of the record
+         */
+        void apply(long lsn, byte type, ByteBuffer payload) throws IOException;
+    }
+
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_BYTES = 5;
+    private static final int TRAILER_BYTES = 4;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+    /** Default size at which a new segment file is started. */
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    /** Default interval between background forces in {@link Durability#ASYNC} mode. */
+    public static final long DEFAULT_ASYNC_INTERVAL_MILLIS = 200;
+
+    private final File directory;
+    private final Durability durability;
+    private final long segmentBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition forced = this.lock.newCondition();
+
+    private FileChannel segment;
+    private long segmentStart;
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private long writtenLsn;
+    private long syncedLsn;
+    private boolean forcing = false;
+    private boolean closed = false;
+    private IOException failure;
+    private Thread flusher;
+
+    /**
+     * Open a log in a directory, creating it if needed. A record
+     * torn at the end of the last segment is truncated away.
+     *
+     * @param directory the directory holding the segment files
+     * @param durability when appended records are forced to disk
+     */
+    public WriteAheadLog(File directory, Durability durability) throws IOException {
+        this(directory, durability, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Open a log in a directory, creating it if needed. A record
+     * torn at the end of the last segment is truncated away.
+     *
+     * @param directory the directory holding the segment files
+     * @param durability when appended records are forced to disk
+     * @param segmentBytes the size at which a new segment file is started
+     */
+    public WriteAheadLog(File directory, Durability durability, long segmentBytes) throws IOException {
+        makePrivate(directory);
+
+        this.directory    = directory;
+        this.durability   = durability;
+        this.segmentBytes = segmentBytes;
+
+        long[] starts = this.segmentStarts();
+        if (starts.length == 0) {
+            this.openSegment(0);
+        } else {
+            long start = starts[starts.length - 1];
+            long end = scan(this.segmentFile(start), start, null);
+
+            this.segment = FileChannel.open(this.segmentFile(start).toPath(), StandardOpenOption.WRITE);
+            this.segment.truncate(end - start);
+            this.segment.position(end - start);
+            this.segmentStart = start;
+            this.writtenLsn = this.syncedLsn = end;
+        }
+
+        if (durability == Durability.ASYNC) {
+            this.flusher = new Thread(new Runnable() {
+                public void run() {
+                    WriteAheadLog.this.flushPeriodically(DEFAULT_ASYNC_INTERVAL_MILLIS);
+                }
+            }, "wal-flusher");
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        }
+    }
+
+    /** Get the directory holding the segment files. */
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /** Get the durability mode of the log. */
+    public Durability getDurability() {
+        return this.durability;
+    }
+
+    /** Get the LSN the next appended record will be given. */
+    public long getEndLsn() {
+        this.lock.lock();
+        try {
+            return this.writtenLsn;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Append a record. Depending on the durability mode this
+     * waits until the record has been forced to disk.
+     *
+     * @param type the type of the record
+     * @param payload the payload of the record
+     * @return the LSN just past the record
+     * @throws IOException if the record could not be written, or an
+     * earlier write failed and the log is no longer usable
+     */
+    public long append(byte type, byte[] payload) throws IOException {
+        return this.append(type, payload, false);
+    }
+
+    /**
+     * Append a record without waiting for it to be forced, where
+     * {@link Durability#BATCH} would wait, so that a run of records
+     * appended by one thread can share a single force. The caller
+     * must {@link #awaitDurable} the last of them before it acts
+     * on their being on disk. In the other modes this is the same
+     * as {@link #append}.
+     *
+     * @param type the type of the record
+     * @param payload the payload of the record
+     * @return the LSN just past the record
+     * @throws IOException if the record could not be written, or an
+     * earlier write failed and the log is no longer usable
+     */
+    public long appendDeferred(byte type, byte[] payload) throws IOException {
+        return this.append(type, payload, true);
+    }
+
+    private long append(byte type, byte[] payload, boolean deferred) throws IOException {
+        if (payload.length > MAX_RECORD_BYTES) throw new IOException("Record too large: " + payload.length + " bytes");
+
+        this.lock.lock();
+        try {
+            this.checkUsable();
+
+            int size = HEADER_BYTES + payload.length + TRAILER_BYTES;
+            if (this.pending.remaining() < size) this.writePending();
+            if (this.pending.remaining() < size) this.pending = ByteBuffer.allocate(Math.max(size, this.pending.capacity()));
+
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(payload);
+            this.pending.putInt(1 + payload.length).put(type).put(payload).putInt((int) crc.getValue());
+            this.writtenLsn += size;
+            long lsn = this.writtenLsn;
+
+            switch (this.durability) {
+            case SYNC:
+                this.writePending();
+                this.segment.force(false);
+                this.syncedLsn = lsn;
+                break;
+            case BATCH:
+                if (!deferred) this.awaitForced(lsn);
+                break;
+            case ASYNC:
+                break;
+            }
+
+            return lsn;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the records up to an LSN are as durable as an
+     * {@link #append} of them would have been: forced to disk,
+     * unless the log is {@link Durability#ASYNC}.
+     *
+     * @param lsn the LSN just past the last record to wait for
+     */
+    public void awaitDurable(long lsn) throws IOException {
+        if (this.durability == Durability.ASYNC) return;
+
+        this.lock.lock();
+        try {
+            this.awaitForced(lsn);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Force every record appended so far to disk.
+     */
+    public void sync() throws IOException {
+        this.lock.lock();
+        try {
+            this.checkUsable();
+            this.awaitForced(this.writtenLsn);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a record has been forced. The first waiter to find
+     * no force in progress becomes the leader: it forces everything
+     * appended so far, outside the lock, on behalf of every waiter.
+     * Must be called with the lock held.
+     */
+    private void awaitForced(long lsn) throws IOException {
+        while (this.syncedLsn < lsn) {
+            this.checkUsable();
+
+            if (this.forcing) {
+                this.forced.awaitUninterruptibly();
+                continue;
+            }
+
+            long target = this.writtenLsn;
+            try {
+                this.writePending();
+                this.forcing = true;
+                FileChannel channel = this.segment;
+
+                this.lock.unlock();
+                try {
+                    channel.force(false);
+                } finally {
+                    this.lock.lock();
+                }
+                this.syncedLsn = Math.max(this.syncedLsn, target);
+            } catch (IOException ioe) {
+                this.failure = ioe;
+                throw ioe;
+            } finally {
+                this.forcing = false;
+                this.forced.signalAll();
+            }
+        }
+    }
+
+    private void flushPeriodically(long intervalMillis) {
+        this.lock.lock();
+        try {
+            while (!this.closed && this.failure == null) {
+                this.forced.await(intervalMillis, TimeUnit.MILLISECONDS);
+                if (!this.closed && this.syncedLsn < this.writtenLsn) this.awaitForced(this.writtenLsn);
+            }
+        } catch (InterruptedException ie) {
+            // Closing
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Write the buffered records to the current segment, starting a new one if it is full. */
+    private void writePending() throws IOException {
+        this.pending.flip();
+        try {
+            while (this.pending.hasRemaining()) this.segment.write(this.pending);
+        } catch (IOException ioe) {
+            this.failure = ioe;
+            throw ioe;
+        }
+        this.pending.clear();
+
+        if (this.writtenLsn - this.segmentStart >= this.segmentBytes && !this.forcing) {
+            this.segment.force(false);
+            this.syncedLsn = this.writtenLsn;
+            this.segment.close();
+            this.openSegment(this.writtenLsn);
+        }
+    }
+
+    private void openSegment(long start) throws IOException {
+        this.segment = FileChannel.open(this.segmentFile(start).toPath(),
+                                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.segment.position(this.segment.size());
+        this.segmentStart = start;
+        this.writtenLsn = this.syncedLsn = start + this.segment.size();
+    }
+
+    private void checkUsable() throws IOException {
+        if (this.closed) throw new IOException("Write-ahead log is closed");
+        if (this.failure != null) throw new IOException("Write-ahead log failed earlier", this.failure);
+    }
+
+    /**
+     * Read every record from an LSN onwards and hand it to a replayer.
+     * Reading stops at the first torn or corrupt record.
+     *
+     * @param from the LSN of the first record to replay; records
+     * starting before it are skipped
+     * @param replayer receives each record in order
+     * @return the LSN just past the last record replayed
+     */
+    public long replay(long from, Replayer replayer) throws IOException {
+        this.lock.lock();
+        try {
+            this.writePending();
+        } finally {
+            this.lock.unlock();
+        }
+
+        long[] starts = this.segmentStarts();
+        long end = from;
+
+        for (int i = 0; i < starts.length; ++i) {
+            long next = i + 1 < starts.length ? starts[i + 1] : Long.MAX_VALUE;
+            if (next <= from) continue;
+
+            end = scan(this.segmentFile(starts[i]), starts[i], new Skipping(from, replayer));
+            if (end < next && next != Long.MAX_VALUE) break;
+        }
+
+        return Math.max(end, from);
+    }
+
+    /** A replayer that ignores records before an LSN. */
+    private static class Skipping implements Replayer {
+        private final long from;
+        private final Replayer target;
+
+        private Skipping(long from, Replayer target) {
+            this.from   = from;
+            this.target = target;
+        }
+
+        public void apply(long lsn, byte type, ByteBuffer payload) throws IOException {
+            if (lsn >= this.from) this.target.apply(lsn, type, payload);
+        }
+    }
+
+    /**
+     * Read the valid records of a segment.
+     *
+     * @return the LSN just past the last valid record
+     */
+    private static long scan(File file, long start, Replayer replayer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+
+            while (buffer.remaining() >= HEADER_BYTES + TRAILER_BYTES) {
+                int position = buffer.position();
+                int length = buffer.getInt();
+                if (length < 1 || length > MAX_RECORD_BYTES + 1 || buffer.remaining() < length + TRAILER_BYTES) break;
+
+                ByteBuffer record = buffer.slice();
+                record.limit(length);
+                crc.reset();
+                crc.update(record.duplicate());
+                buffer.position(buffer.position() + length);
+                if ((int) crc.getValue() != buffer.getInt()) {
+                    buffer.position(position);
+                    break;
+                }
+
+                byte type = record.get();
+                if (replayer != null) replayer.apply(start + position, type, record.slice());
+            }
+
+            return start + buffer.position();
+        }
+    }
+
+    /**
+     * Delete the segment files whose records all lie before an LSN.
+     * The segment being written is never deleted.
+     *
+     * @param lsn the LSN before which records are no longer needed
+     */
+    public void truncateBefore(long lsn) throws IOException {
+        this.lock.lock();
+        try {
+            long[] starts = this.segmentStarts();
+
+            for (int i = 0; i + 1 < starts.length; ++i) {
+                if (starts[i + 1] > lsn || starts[i] == this.segmentStart) break;
+
+                File file = this.segmentFile(starts[i]);
+                if (!file.delete()) throw new IOException("Cannot delete " + file);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Force all appended records to disk and close the log. */
+    public void close() throws IOException {
+        this.lock.lock();
+        try {
+            if (this.closed) return;
+
+            if (this.failure == null) this.awaitForced(this.writtenLsn);
+            this.closed = true;
+            this.forced.signalAll();
+            this.segment.close();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Create a directory, or take one that exists, that only its
+     * owner can read, as the records in it hold passwords.
+     */
+    private static void makePrivate(File directory) throws IOException {
+        File parent = directory.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) throw new IOException("Cannot create " + parent);
+
+        Set<PosixFilePermission> owner = PosixFilePermissions.fromString("rwx------");
+        try {
+            if (directory.isDirectory()) {
+                Files.setPosixFilePermissions(directory.toPath(), owner);
+            } else {
+                Files.createDirectory(directory.toPath(), PosixFilePermissions.asFileAttribute(owner));
+            }
+        } catch (UnsupportedOperationException uoe) {
+            // Not a POSIX file system, whose own access control applies
+            if (!directory.isDirectory() && !directory.mkdir()) throw new IOException("Cannot create " + directory);
+        }
+    }
+
+    private File segmentFile(long start) {
+        return new File(this.directory, String.format("%s%020d%s", PREFIX, start, SUFFIX));
+    }
+
+    private long[] segmentStarts() {
+        List<Long> starts = new ArrayList<Long>();
+        String[] names = this.directory.list();
+
+        if (names != null) {
+            for (String name : names) {
+                if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) continue;
+
+                try {
+                    starts.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException nfe) {
+                    // Not one of ours
+                }
+            }
+        }
+
+        long[] result = new long[starts.size()];
+        for (int i = 0; i < result.length; ++i) result[i] = starts.get(i);
+        Arrays.sort(result);
+
+        return result;
+    }
+}